@@ -0,0 +1,47 @@
+package firenoo.sim.buffer;
+
+/**
+ * A double between a fixed minimum and maximum.
+ */
+public class BoundedDouble implements DoubleBoundedBuffer {
+
+    private final double min, max;
+    private double value;
+
+    /**
+     * Starts at the minimum.
+     */
+    public BoundedDouble(double min, double max) {
+        if(min > max) {
+            throw new IllegalArgumentException("min must not be greater than max!");
+        }
+        this.min = min;
+        this.max = max;
+        this.value = min;
+    }
+
+    @Override
+    public double doubleValue() {
+        return value;
+    }
+
+    @Override
+    public void setDouble(double value) {
+        this.value = Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public double maxDouble() {
+        return max;
+    }
+
+    @Override
+    public double minDouble() {
+        return min;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,47 @@
+package firenoo.sim.buffer;
+
+/**
+ * An int between a fixed minimum and maximum.
+ */
+public class BoundedInt implements IntBoundedBuffer {
+
+    private final int min, max;
+    private int value;
+
+    /**
+     * Starts at the minimum.
+     */
+    public BoundedInt(int min, int max) {
+        if(min > max) {
+            throw new IllegalArgumentException("min must not be greater than max!");
+        }
+        this.min = min;
+        this.max = max;
+        this.value = min;
+    }
+
+    @Override
+    public int intValue() {
+        return value;
+    }
+
+    @Override
+    public void setInt(int value) {
+        this.value = Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public int maxInt() {
+        return max;
+    }
+
+    @Override
+    public int minInt() {
+        return min;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+}
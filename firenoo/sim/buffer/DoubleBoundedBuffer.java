@@ -0,0 +1,119 @@
+package firenoo.sim.buffer;
+
+import firenoo.lib.buffer.IBoundedBuffer;
+
+/**
+ * A bounded buffer of doubles with unboxed accessors. The boxed methods of
+ * {@link IBoundedBuffer} still work and forward to the unboxed ones, so code
+ * that only knows the generic buffer keeps working; hot loops should use the
+ * unboxed ones, which never allocate.
+ */
+public interface DoubleBoundedBuffer extends IBoundedBuffer<Double> {
+
+    /**
+     * A buffer that is always empty. Setting it does nothing.
+     */
+    DoubleBoundedBuffer ZERO = new Zero();
+
+    double doubleValue();
+
+    /**
+     * Sets the value, clamped to [min, max].
+     */
+    void setDouble(double value);
+
+    double maxDouble();
+
+    double minDouble();
+
+    /**
+     * Moves up to the amount from the source into this buffer, as much as
+     * the source has above its minimum and this buffer has room for.
+     * @return the amount moved
+     */
+    default double transferFrom(DoubleBoundedBuffer source, double amount) {
+        double moved = Math.min(amount, Math.min(source.doubleValue() - source.minDouble(), maxDouble() - doubleValue()));
+        if(moved <= 0) {
+            return 0;
+        }
+        source.setDouble(source.doubleValue() - moved);
+        setDouble(doubleValue() + moved);
+        return moved;
+    }
+
+    @Override
+    default Double value() {
+        return doubleValue();
+    }
+
+    @Override
+    default void set(Double value) {
+        setDouble(value);
+    }
+
+    @Override
+    default Double max() {
+        return maxDouble();
+    }
+
+    @Override
+    default Double min() {
+        return minDouble();
+    }
+
+    @Override
+    default boolean atMin() {
+        return doubleValue() <= minDouble();
+    }
+
+    @Override
+    default boolean atMax() {
+        return doubleValue() >= maxDouble();
+    }
+
+    /**
+     * Moves up to the amount from the other buffer into this buffer.
+     * @return the amount moved
+     */
+    @Override
+    default Double transfer(IBoundedBuffer<? extends Number> other, Number amount) {
+        if(other instanceof DoubleBoundedBuffer) {
+            return transferFrom((DoubleBoundedBuffer) other, amount.doubleValue());
+        }
+        if(!(other instanceof IntBoundedBuffer)) {
+            throw new UnsupportedOperationException("Cannot transfer from " + other.getClass().getName());
+        }
+        //Integer buffers only give away whole units.
+        IntBoundedBuffer source = (IntBoundedBuffer) other;
+        double moved = Math.min(Math.floor(amount.doubleValue()), Math.min(source.intValue() - source.minInt(), Math.floor(maxDouble() - doubleValue())));
+        if(moved <= 0) {
+            return 0d;
+        }
+        source.setInt(source.intValue() - (int) moved);
+        setDouble(doubleValue() + moved);
+        return moved;
+    }
+
+    final class Zero implements DoubleBoundedBuffer {
+
+        private Zero() {}
+
+        @Override
+        public double doubleValue() {
+            return 0;
+        }
+
+        @Override
+        public void setDouble(double value) {}
+
+        @Override
+        public double maxDouble() {
+            return 0;
+        }
+
+        @Override
+        public double minDouble() {
+            return 0;
+        }
+    }
+}
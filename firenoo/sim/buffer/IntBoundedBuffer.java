@@ -0,0 +1,97 @@
+package firenoo.sim.buffer;
+
+import firenoo.lib.buffer.IBoundedBuffer;
+
+/**
+ * A bounded buffer of ints with unboxed accessors. See
+ * {@link DoubleBoundedBuffer}.
+ */
+public interface IntBoundedBuffer extends IBoundedBuffer<Integer> {
+
+    int intValue();
+
+    /**
+     * Sets the value, clamped to [min, max].
+     */
+    void setInt(int value);
+
+    int maxInt();
+
+    int minInt();
+
+    /**
+     * Moves up to the amount from the source into this buffer, as much as
+     * the source has above its minimum and this buffer has room for.
+     * @return the amount moved
+     */
+    default int transferFrom(IntBoundedBuffer source, int amount) {
+        int moved = Math.min(amount, Math.min(source.intValue() - source.minInt(), maxInt() - intValue()));
+        if(moved <= 0) {
+            return 0;
+        }
+        source.setInt(source.intValue() - moved);
+        setInt(intValue() + moved);
+        return moved;
+    }
+
+    /**
+     * Moves up to the amount from the source into this buffer, in whole
+     * units; a fraction left in the source stays there.
+     * @return the amount moved
+     */
+    default int transferFrom(DoubleBoundedBuffer source, int amount) {
+        double available = Math.floor(source.doubleValue() - source.minDouble());
+        int moved = (int) Math.min(amount, Math.min(available, (double) maxInt() - intValue()));
+        if(moved <= 0) {
+            return 0;
+        }
+        source.setDouble(source.doubleValue() - moved);
+        setInt(intValue() + moved);
+        return moved;
+    }
+
+    @Override
+    default Integer value() {
+        return intValue();
+    }
+
+    @Override
+    default void set(Integer value) {
+        setInt(value);
+    }
+
+    @Override
+    default Integer max() {
+        return maxInt();
+    }
+
+    @Override
+    default Integer min() {
+        return minInt();
+    }
+
+    @Override
+    default boolean atMin() {
+        return intValue() <= minInt();
+    }
+
+    @Override
+    default boolean atMax() {
+        return intValue() >= maxInt();
+    }
+
+    /**
+     * Moves up to the amount from the other buffer into this buffer.
+     * @return the amount moved
+     */
+    @Override
+    default Integer transfer(IBoundedBuffer<? extends Number> other, Number amount) {
+        if(other instanceof IntBoundedBuffer) {
+            return transferFrom((IntBoundedBuffer) other, amount.intValue());
+        }
+        if(other instanceof DoubleBoundedBuffer) {
+            return transferFrom((DoubleBoundedBuffer) other, amount.intValue());
+        }
+        throw new UnsupportedOperationException("Cannot transfer from " + other.getClass().getName());
+    }
+}
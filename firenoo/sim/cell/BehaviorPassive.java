@@ -1,5 +1,6 @@
 package firenoo.sim.cell;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
@@ -9,8 +10,12 @@ import java.util.Random;
 import firenoo.sim.cell.memory.CellMapMemory;
 import firenoo.sim.env.CellMove;
 import firenoo.sim.env.CellMoveHandler;
+import firenoo.sim.env.ClusterGraph;
+import firenoo.sim.env.FlowField;
+import firenoo.sim.env.GridStore;
 import firenoo.sim.env.IEnvironment;
 import firenoo.sim.env.ITile;
+import firenoo.sim.env.VisionView;
 import firenoo.lib.data.BitUtils;
 import firenoo.lib.structs.MinPriorityQueue;
 import firenoo.lib.structs.Queue;
@@ -23,37 +28,85 @@ import firenoo.lib.structs.Vec2i;
  * too complex about it.
 */
 public class BehaviorPassive extends ACellBehavior {
+
+    /**
+     * Hungry cells search their own path to food with A*.
+     */
+    public static final int PATHING_ASTAR = 0;
+    /**
+     * Hungry cells follow the flow field of the environment, and fall back to
+     * A* where there is none.
+     */
+    public static final int PATHING_FLOW = 1;
+
+    private final int pathing;
     
-    private Queue<NodeVertex> movePath;
+    //World indices of the remaining steps to the current food target, and
+    //of the step queued last. The path stays valid as long as the cell keeps
+    //making the queued steps and the tiles along it do not change.
+    private int[] movePath;
+    private int movePathHead, movePathLength;
+    private int lastStep;
+    //World index of the food the path leads to. With long range searches the
+    //path may end at a waypoint before it.
+    private int pathTarget;
     //Food positions are kept in increasing distnace from the current cell.
     private MinPriorityQueue<NodeVertex> foodPositions;
     private Random random;
 
     private CellMapMemory memory = null;
 
-    private static final double MIN_FOOD = 0.1;
+    static final double MIN_FOOD = 0.1;
+
+    //Subclasses keep the passive metabolism unless they override eating.
+    private static final ClassValue<Boolean> PASSIVE_METABOLISM = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("eatEvent", VisionView.class, int.class).getDeclaringClass() == BehaviorPassive.class;
+            } catch(NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
 
     public BehaviorPassive(int cycle) {
+        this(cycle, PATHING_ASTAR);
+    }
+
+    /**
+     * @param pathing PATHING_ASTAR or PATHING_FLOW
+     */
+    public BehaviorPassive(int cycle, int pathing) {
         super();
+        if(pathing != PATHING_ASTAR && pathing != PATHING_FLOW) {
+            throw new IllegalArgumentException("Unknown pathing mode: " + pathing);
+        }
         this.cycle = cycle;
+        this.pathing = pathing;
     }
 
     @Override
     public void setCell(ICell cell, int cycle) {
         super.setCell(cell, cycle);
-        this.movePath = new Queue<>(this.visionRange * this.visionRange / 2);
-        this.foodPositions = new MinPriorityQueue<>(movePath.capacity());
+        this.movePath = new int[Math.max(1, this.visionRange * this.visionRange / 2)];
+        this.foodPositions = new MinPriorityQueue<>(movePath.length);
         this.random = new Random((cell.hashCode() + 1) << cycle);
         this.memory = new CellMapMemory(cell, cycle);
     }
 
     @Override
-    public void eatEvent(ITile[][] vision, int cycle) {
+    public boolean usesPassiveMetabolism() {
+        return PASSIVE_METABOLISM.get(getClass());
+    }
+
+    @Override
+    public void eatEvent(VisionView vision, int cycle) {
         final ITile tile = cell.getTile();
         double maxFoodAbsorbed = cell.ribosome().getFoodAbsorption();    
-        if(tile.food().value() >= MIN_FOOD) {
+        if(tile.food().doubleValue() >= MIN_FOOD) {
             //Absorb food from the environment into the cell.
-            cell.food().transfer(tile.food(), maxFoodAbsorbed);
+            cell.food().transferFrom(tile.food(), maxFoodAbsorbed);
             this.state &= ~HUNGRY;
         } else {
             this.state |= HUNGRY;
@@ -71,14 +124,14 @@ public class BehaviorPassive extends ACellBehavior {
             int gf = cell.ribosome().getGrowthFactor();
             gf = BitUtils.hammingDist(gf, 0, 8) - 4;
             double fd = cell.ribosome().getFoodDigestion();
-            fd = cell.getTile().food().max();
+            fd = cell.getTile().food().maxDouble();
             double maxAbsorption;
             if(rationing == 256.0) {
                 maxAbsorption = (gf * 0.1 + 1) * fd;
             } else {
                 maxAbsorption = rationLimit * fd;
             }
-            double amount = Math.max(cell.food().value(), maxAbsorption);
+            double amount = Math.max(cell.food().doubleValue(), maxAbsorption);
             double growth = amount * ((ge + 128.0) / 256.0f);
             cell.food().transfer(cell.growthProgress(), (int)(growth * 25));
             this.state &= ~STARVING;
@@ -89,99 +142,170 @@ public class BehaviorPassive extends ACellBehavior {
      * The AI will only move if the tile it occupies has little/no food.
      */
     @Override
-    public void moveEvent(ITile[][] vision, CellMoveHandler handler, int cycle) {
+    public void moveEvent(VisionView vision, CellMoveHandler handler, int cycle) {
         final int x = this.cell.getTile().getX();
         final int y = this.cell.getTile().getY();
+        final GridStore grid = vision.grid();
+        final PathFinder finder = PathFinder.get();
         //TODO: OPTIMIZE THIS AI CODE.
         if(this.state == HUNGRY) {
-            //Check if the food positions have any 
+            if(pathing == PATHING_FLOW && flowMove(vision, handler, cycle, x, y)) {
+                return;
+            }
+            //Keep following the last path while nothing on it changed.
+            if(followPath(vision, handler, cycle, x, y)) {
+                return;
+            }
+            //Otherwise look for a path again, to the remembered food if any.
+            NodeVertex target;
             if(foodPositions.isEmpty()) {
-                NodeVertex pos = findClosestFood(vision);
-                //Proposition: movePath will always be empty here. The condition for
-                //movePath to have contents is to have a target food tile, and to have
-                //a target food tile means foodPositions is not empty.
-                if(pos == null) {
-                    wander(handler, cycle, x, y, vision);
-                    return;
-                }
-                //Find a path to the located food, if it exists.
-                SearchResult result = pathTo(pos.pos, vision, 1);
-                if(result == null) {
-                    wander(handler, cycle, x, y, vision);
-                    return;
-                }
-                //Add the next move to the queue.
-                handler.queueEvent(new CellMove(cycle, x, y, result.nextMove.pos.x, result.nextMove.pos.y, 4));
-                //Fill our move path
-                NodeVertex iter = result.nextMove;
-                while(iter != null) {
-                    iter = iter.target;
-                    movePath.enqueue(iter);
-                }
-                //Add these moves at a lower priority to the move handler.
-                SearchResult backups;
-                for(int i = 1; i < 4; i++) {
-                    backups = pathTo(pos.pos, vision, i + 1);
-                    if(backups.nextMove.pos.equals(result.nextMove.pos)) {
-                        break;
-                    }
-                    handler.queueEvent(new CellMove(cycle, x, y, backups.nextMove.pos.x, backups.nextMove.pos.y, 4 - i));
-                }
-                //Add the food to the food positions.
-                foodPositions.enqueue(pos, result.dist);
-                
+                target = findClosestFood(vision);
             } else {
-                while(!foodPositions.isEmpty()){
-                    NodeVertex target = foodPositions.dequeue();
-                    //This updates the path!
-                    SearchResult result = pathTo(target.pos, vision, 1);
-                    if(result != null) {
-                        handler.queueEvent(new CellMove(cycle, x, y, result.nextMove.pos.x, result.nextMove.pos.y, 4));
-                        SearchResult backups;
-                        for(int i = 1; i < 4; i++) {
-                            backups = pathTo(target.pos, vision, i + 1);
-                            
-                            if(backups.nextMove.pos.equals(result.nextMove.pos)) {
-                                break;
-                            }
-                            handler.queueEvent(new CellMove(cycle, x, y, backups.nextMove.pos.x, backups.nextMove.pos.y, 4 - i));
-                        }
-                    }
-                }
-                if(!movePath.isEmpty()) {
-                    NodeVertex next = movePath.dequeue();
-                    handler.queueEvent(new CellMove(cycle, x, y, next.pos.x, next.pos.y, 4));
-                } else {
-                    wander(handler, cycle, x, y, vision);
+                target = foodPositions.dequeue();
+                foodPositions.clear();
+            }
+            if(target == null || !pathTo(finder, target.pos, vision)) {
+                wander(handler, cycle, x, y, vision);
+                return;
+            }
+            //Add the next move to the queue.
+            int next = finder.firstStep(1);
+            handler.queueEvent(new CellMove(cycle, x, y, grid.xOf(next), grid.yOf(next), 4));
+            //Fill our move path with the steps after the next move.
+            lastStep = next;
+            pathTarget = grid.index(target.pos.x, target.pos.y);
+            movePathHead = 0;
+            movePathLength = 0;
+            for(int k = 1; k < finder.pathLength(); k++) {
+                if(movePathLength == movePath.length) {
+                    movePath = Arrays.copyOf(movePath, movePath.length * 2);
                 }
-                
-                
+                movePath[movePathLength++] = finder.step(k);
+            }
+            //Same measure as before: steps to the food, minus 2.
+            int dist = finder.pathLength() - 2;
+            //Add these moves at a lower priority to the move handler.
+            queueBackups(finder, handler, cycle, x, y, grid);
+            //Add the food to the food positions.
+            foodPositions.enqueue(target, dist);
+        }
+    }
+
+    /**
+     * Queues the next step of the stored path, if the path is still good:
+     * <ul>
+     *  <li>the cell made the last step of the path,</li>
+     *  <li>the food tile it leads to still has food and no cell, and</li>
+     *  <li>no tile left on the path turned into a block or holds a cell.</li>
+     * </ul>
+     * Only the tiles of the path are looked at. The path is dropped if it is
+     * no good anymore.
+     * @return True iff a step was queued.
+     */
+    private boolean followPath(VisionView vision, CellMoveHandler handler, int cycle, int x, int y) {
+        if(movePathHead >= movePathLength) {
+            return false;
+        }
+        final GridStore grid = vision.grid();
+        boolean valid = vision.centerIndex() == lastStep
+            && grid.food(pathTarget) > 0 && !grid.hasCell(pathTarget);
+        for(int k = movePathHead; valid && k < movePathLength; k++) {
+            valid = !grid.isBlock(movePath[k]) && !grid.hasCell(movePath[k]);
+        }
+        if(!valid) {
+            movePathHead = 0;
+            movePathLength = 0;
+            return false;
+        }
+        int next = movePath[movePathHead++];
+        lastStep = next;
+        handler.queueEvent(new CellMove(cycle, x, y, grid.xOf(next), grid.yOf(next), 4));
+        return true;
+    }
+
+    /**
+     * Queues the step the flow field points to at priority 4, and the other
+     * steps that get just as close to food at lower priorities.
+     * @return False iff the field has no way to food within the vision window.
+     */
+    private boolean flowMove(VisionView vision, CellMoveHandler handler, int cycle, int x, int y) {
+        final FlowField flow = vision.flowField();
+        if(flow == null) {
+            return false;
+        }
+        final int center = vision.centerIndex();
+        final int dist = flow.dist(center);
+        final int dir = flow.direction(center);
+        if(dir == FlowField.NONE || dist > vision.range()) {
+            return false;
+        }
+        final GridStore grid = vision.grid();
+        int next = flow.step(center, dir);
+        handler.queueEvent(new CellMove(cycle, x, y, grid.xOf(next), grid.yOf(next), 4));
+        int priority = 3;
+        final int open = vision.openNeighbors();
+        for(int d = 0; d < 4; d++) {
+            if(d == dir || (open & (1 << d)) == 0) {
+                continue;
+            }
+            int n = flow.step(center, d);
+            if(flow.dist(n) == dist - 1) {
+                handler.queueEvent(new CellMove(cycle, x, y, grid.xOf(n), grid.yOf(n), priority--));
             }
+        }
+        return true;
+    }
 
+    /**
+     * Queues the first steps of the paths that avoid other cells more and more
+     * strongly, at priorities 3 to 1, until one of them starts with the same
+     * step as the cheapest path. Reads the last search of the finder.
+     */
+    private void queueBackups(PathFinder finder, CellMoveHandler handler, int cycle, int x, int y, GridStore grid) {
+        int next = finder.firstStep(1);
+        for(int i = 1; i < 4; i++) {
+            int backup = finder.firstStep(i + 1);
+            if(backup == next) {
+                break;
+            }
+            handler.queueEvent(new CellMove(cycle, x, y, grid.xOf(backup), grid.yOf(backup), 4 - i));
         }
     }
 
     @Override
-    public void splitEvent(ITile[][] vision, CellMoveHandler handler, int cycle) {
+    public void splitEvent(VisionView vision, CellMoveHandler handler, int cycle) {
     }
 
     /**
-     * Finds the closest unoccupied tile with food in range. BFS Search.
+     * Finds the closest unoccupied tile with food in range. Looks it up in the
+     * food field of the environment, or runs a BFS through the window if the
+     * view has no field.
      * @param vision
      * @return
      */
-    private NodeVertex findClosestFood(ITile[][] vision) {
-        int center = this.visionRange;
+    private NodeVertex findClosestFood(VisionView vision) {
+        if(vision.foodField() != null) {
+            int food = vision.nearestFood();
+            if(food < 0) {
+                return null;
+            }
+            GridStore grid = vision.grid();
+            return new NodeVertex(grid.tile(food), grid.xOf(food), grid.yOf(food), null);
+        }
+        if(vision.countFreeFood() == 0) {
+            return null;
+        }
+        int center = vision.range();
         Map<ITile, NodeVertex> finished = new HashMap<>();
-        Queue<NodeVertex> bfs = new Queue<>(vision.length * vision.length / 2);
-        bfs.enqueue(new NodeVertex(vision[center][center], center, center, null));
+        Queue<NodeVertex> bfs = new Queue<>(vision.diameter() * vision.diameter() / 2);
+        bfs.enqueue(new NodeVertex(vision.tile(center, center), center, center, null));
         NodeVertex coords = null;
         while(!bfs.isEmpty()) {
             NodeVertex node = bfs.dequeue();
             finished.put(node.tile, node);
             // System.out.println(node.tile);
             //Found
-            if(node.tile.food().value() > 0 && node.tile.getCell() == null) {
+            if(node.tile.food().doubleValue() > 0 && node.tile.getCell() == null) {
                 coords = node;
                 while(node != null) {
                     //change from relative coordinates -> tile coordinates
@@ -202,138 +326,95 @@ public class BehaviorPassive extends ACellBehavior {
     }
 
     /**
-     * Finds the path distance to the position. This algorithm avoids tiles with
-     * other cells, which increases path cost by {@code cellCost}. Uses A*
-     * @return the path distance (cost) or -1 if no path was found
+     * Finds paths to the position for every cell cost at once. Paths avoid
+     * tiles with other cells, which increases path cost by the cell cost.
+     * If the vision is wider than a local search needs, the cluster graph of
+     * the environment picks a waypoint on the way first, and only the path to
+     * the waypoint is searched, in a small window.
+     * @return True iff a path was found; the first steps and the cheapest path
+     *         for cell cost 1 are kept by the finder.
      */
-    public SearchResult pathTo(Vec2i pos, ITile[][] vision, int cellCost) {
-        MinPriorityQueue<NodeVertex> openSet = new MinPriorityQueue<>(vision.length * vision.length);
-        int center = vision.length / 2;
-        Vec2i cellPos = new Vec2i(this.cell.getTile().getX(), this.cell.getTile().getY());
+    private boolean pathTo(PathFinder finder, Vec2i pos, VisionView vision) {
+        final int x = this.cell.getTile().getX();
+        final int y = this.cell.getTile().getY();
         //If it is out of range...
-        if(IEnvironment.taxicabDist(cellPos, pos) > visionRange) {
-            return null;
+        if(IEnvironment.taxicabDist(x, y, pos.x, pos.y) > visionRange) {
+            return false;
         }
-        openSet.enqueue(new NodeVertex(vision[center][center], center, center, 0, null), 0);
-        HashMap<ITile, NodeVertex> completed = new HashMap<>();
-        while(!openSet.isEmpty()) {
-            NodeVertex current = openSet.dequeue();
-            // System.out.printf("At %d, %d%n", current.tile.getX(), current.tile.getY());
-            Vec2i currentPos = new Vec2i(current.tile.getX(), current.tile.getY());
-            completed.put(current.tile, current);
-            if(currentPos.equals(pos)) {
-                //done, reconstruct path
-                // System.out.println("Finished");
-                int dist = -1;
-                while(current.source.tile != vision[center][center]) {
-                    // System.out.println(current.tile.getX() + ", " + current.tile.getY());
-                    current = current.source;
-                    current.source.target = current;
-                    dist++;
-                }
-                current.pos = new Vec2i(current.tile.getX(), current.tile.getY());
-                return new SearchResult(dist, current);
+        final ClusterGraph graph = vision.clusterGraph();
+        if(graph != null && vision.range() > graph.localRange()) {
+            final GridStore grid = vision.grid();
+            int waypoint = graph.firstWaypoint(vision.centerIndex(), grid.index(pos.x, pos.y));
+            if(waypoint == -1) {
+                return false;
             }
-            for(NodeVertex n : neighbors(vision, current, completed)) {
-                if(n == null || n.tile.isBlock()) continue;
-                int g = current.g + (n.tile.getCell() == null ? 1 : cellCost);
-                // System.out.printf("Considering %d, %d%n", n.tile.getX(), n.tile.getY());
-                //-1 denotes infinity.
-                if(g < n.g || n.g == -1) {
-                    n.source = current;
-                    n.g = g;
-                    if(!openSet.contains(n)) {
-                        // System.out.println("Adding " + n.tile.getX() + ", " + n.tile.getY());
-                        openSet.enqueue(n, n.g + IEnvironment.taxicabDist(n.tile.getX(), n.tile.getY(), pos.x, pos.y));
-                    
-                    }
+            if(waypoint != ClusterGraph.NOT_BUILT) {
+                VisionView local = finder.localView(grid).reset(x, y, graph.localRange());
+                if(finder.searchAllCosts(local, grid.xOf(waypoint), grid.yOf(waypoint))) {
+                    return true;
                 }
+                //The way to a goal in the same cluster may leave the local
+                //window.
             }
+            //Not built yet, or no local way; search the whole window.
         }
-        return null;
-
+        return finder.searchAllCosts(vision, pos.x, pos.y);
     }
 
-    private void wander(CellMoveHandler handler, int cycle, int x, int y, ITile[][] tiles) {
+    private void wander(CellMoveHandler handler, int cycle, int x, int y, VisionView tiles) {
         //wander AI
         int dir;
         Set<Integer> dupe = new HashSet<>();
         int priority = 4;
+        final int open = tiles.openNeighbors();
         do {
             dir = random.nextInt(4);
             if(!dupe.contains(dir)) {
-                if(addByDirection(handler, cycle, priority, dir, x, y, tiles)) {
+                if(addByDirection(handler, cycle, priority, dir, x, y, open)) {
                     priority--;
                 }
                 dupe.add(dir);
             }
         } while(dupe.size() < 4);
-        movePath.clear();
+        movePathHead = 0;
+        movePathLength = 0;
         foodPositions.clear();
     }
 
-    private boolean addByDirection(CellMoveHandler handler, int cycle, int priority, int direction, int x, int y, ITile[][] vision) {
+    private boolean addByDirection(CellMoveHandler handler, int cycle, int priority, int direction, int x, int y, int open) {
         //nswe
-        ITile tile;
+        if(direction < 0 || direction > 3) {
+            throw new IllegalArgumentException("Direction must be an integer from 0 to 3!");
+        }
+        if((open & (1 << direction)) == 0) {
+            return false;
+        }
         switch(direction) {
-            case 0: 
-                //North
-                tile = vision[visionRange - 1][visionRange];
-                if(tile != null && !tile.isBlock()) {
-                    handler.queueEvent(new CellMove(cycle, x, y, x, y - 1, priority));
-                    return true;
-                }
+            case GridStore.NORTH: 
+                handler.queueEvent(new CellMove(cycle, x, y, x, y - 1, priority));
                 break;
-            case 1:
-                //South
-                tile = vision[visionRange + 1][visionRange];
-                if(tile != null && !tile.isBlock()) {
-                    handler.queueEvent(new CellMove(cycle, x, y, x, y + 1, priority));
-                    return true;
-                }
+            case GridStore.SOUTH:
+                handler.queueEvent(new CellMove(cycle, x, y, x, y + 1, priority));
                 break;
-            case 2:
-                //West
-                tile = vision[visionRange][visionRange - 1];
-                if(tile != null && !tile.isBlock()) {
-                    handler.queueEvent(new CellMove(cycle, x, y, x - 1, y, priority));
-                    return true;
-                }
+            case GridStore.WEST:
+                handler.queueEvent(new CellMove(cycle, x, y, x - 1, y, priority));
                 break;
-            case 3:
+            default:
                 //East
-                tile = vision[visionRange][visionRange + 1];
-                if(tile != null && !tile.isBlock()) {
-                    handler.queueEvent(new CellMove(cycle, x, y,  x + 1, y, priority));
-                    return true;
-                }
+                handler.queueEvent(new CellMove(cycle, x, y, x + 1, y, priority));
                 break;
-            default:
-                throw new IllegalArgumentException("Direction must be an integer from 0 to 3!");
         }
-        return false;
+        return true;
     }
     
-    private NodeVertex[] neighbors(ITile[][] tiles, NodeVertex pos, Map<ITile, NodeVertex> set) {
-        ITile north = null;
-        ITile west = null;
-        ITile south = null;
-        ITile east = null;
+    private NodeVertex[] neighbors(VisionView tiles, NodeVertex pos, Map<ITile, NodeVertex> set) {
         int x = pos.x();
         int y = pos.y();
-        if(pos.y() > 0) {
-            north = tiles[y - 1][x];
-            
-        }
-        if(y < tiles.length) {
-            south = tiles[y + 1][x];
-        }
-        if(pos.x() > 0) {
-            west = tiles[y][x - 1];
-        }
-        if(pos.x() < tiles[y].length) {
-            east = tiles[y][x + 1];
-        }
+        //Slots outside the window come back as null.
+        ITile north = tiles.tile(y - 1, x);
+        ITile west = tiles.tile(y, x - 1);
+        ITile south = tiles.tile(y + 1, x);
+        ITile east = tiles.tile(y, x + 1);
         return new NodeVertex[] {
             set.getOrDefault(north, NodeVertex.from(north, x, y-1, -1, pos)),
             set.getOrDefault(south, NodeVertex.from(south, x, y+1, -1, pos)),
@@ -345,7 +426,7 @@ public class BehaviorPassive extends ACellBehavior {
     private static class NodeVertex {
         ITile tile;
         Vec2i pos;
-        NodeVertex source, target;
+        NodeVertex source;
         //current score
         int g;
 
@@ -376,14 +457,4 @@ public class BehaviorPassive extends ACellBehavior {
             return pos.y;
         }
     }
-
-    static class SearchResult {
-        int dist;
-        NodeVertex nextMove;
-
-        SearchResult(int dist, NodeVertex nextMove) {
-            this.dist = dist;
-            this.nextMove = nextMove;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -1,9 +1,9 @@
 package firenoo.sim.cell;
 
-import firenoo.lib.buffer.IntBoundBuffer;
-import firenoo.lib.buffer.DoubleBoundBuffer;
-import firenoo.lib.buffer.IBoundedBuffer;
-import firenoo.lib.structs.Queue;
+import firenoo.sim.buffer.BoundedDouble;
+import firenoo.sim.buffer.BoundedInt;
+import firenoo.sim.buffer.DoubleBoundedBuffer;
+import firenoo.sim.buffer.IntBoundedBuffer;
 import firenoo.lib.data.SaveHelper;
 import firenoo.dna.IDna;
 import firenoo.dna.Dna;
@@ -15,6 +15,8 @@ import firenoo.dna.DnaWriter;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.function.Consumer;
 
@@ -28,8 +30,8 @@ public class Cell implements ICell {
     private int level;
     private final int MAX_LEVEL;
     private int starveCounter;
-    private IBoundedBuffer<Double> food;
-    private IBoundedBuffer<Integer> growthProgress;
+    private DoubleBoundedBuffer food;
+    private IntBoundedBuffer growthProgress;
     private IDna dna;
     private IRibosome ribosome;
     private ITile tile;
@@ -39,7 +41,15 @@ public class Cell implements ICell {
 
 
     public Cell(IDna dna, ITile tile, ICellBehavior behavior, int cycle) {
-        this(0, 0, 10, 0, 0, 0, dna, tile, behavior, cycle);
+        this(0, 0, 10, 0, 0, 0, dna, PhenotypeCache.shared().get(dna), tile, behavior, cycle);
+    }
+
+    /**
+     * Creates a cell whose traits were already decoded, e.g. by a
+     * {@link PhenotypeTable}. The phenotype must be the one of the dna.
+     */
+    public Cell(IDna dna, Phenotype phenotype, ITile tile, ICellBehavior behavior, int cycle) {
+        this(0, 0, 10, 0, 0, 0, dna, phenotype, tile, behavior, cycle);
     }
 
     private Cell(int age,
@@ -49,6 +59,7 @@ public class Cell implements ICell {
                  double food,
                  int growthProgress,
                  IDna dna,
+                 Phenotype phenotype,
                  ITile tile,
                  ICellBehavior behavior,
                  int cycle) {
@@ -57,11 +68,13 @@ public class Cell implements ICell {
         this.MAX_LEVEL = maxLevel;
         this.starveCounter = starveCounter;
         this.dna = dna;
-        this.ribosome = new RiboImpl(dna);
-        this.food = new DoubleBoundBuffer(0, ribosome.getFoodStorage());
-        this.food.set(food);
-        this.growthProgress = new IntBoundBuffer(0, getGrowthLevel());
-        this.growthProgress.set(growthProgress);
+        this.ribosome = new RiboImpl(dna, phenotype);
+        //Both bounds come from signed genes and may be negative; such a cell
+        //simply has no room, rather than failing to be created.
+        this.food = new BoundedDouble(0, Math.max(0, ribosome.getFoodStorage()));
+        this.food.setDouble(food);
+        this.growthProgress = new BoundedInt(0, Math.max(0, getGrowthLevel()));
+        this.growthProgress.setInt(growthProgress);
         this.tile = tile;
         this.behavior = behavior;
         this.cycle = cycle;
@@ -84,12 +97,12 @@ public class Cell implements ICell {
      * @return Amount of food the cell has internally.
      */
     @Override
-    public IBoundedBuffer<Double> food() {
+    public DoubleBoundedBuffer food() {
         return this.food;
     }
 
     @Override
-    public IBoundedBuffer<Integer> growthProgress() {
+    public IntBoundedBuffer growthProgress() {
         return this.growthProgress;
     }
 
@@ -147,8 +160,8 @@ public class Cell implements ICell {
         SaveHelper.writeInt(level, stream);
         SaveHelper.writeInt(MAX_LEVEL, stream);
         SaveHelper.writeInt(starveCounter, stream);
-        SaveHelper.writeDouble(food.value(), stream);
-        SaveHelper.writeInt(growthProgress.value(), stream);
+        SaveHelper.writeDouble(food.doubleValue(), stream);
+        SaveHelper.writeInt(growthProgress.intValue(), stream);
         SaveHelper.writeInt(cycle, stream);
         IDnaWriter writer = new DnaWriter();
         writer.write(dna, stream);
@@ -156,395 +169,212 @@ public class Cell implements ICell {
     }
 
     public static ICell deserialize(ITile tile, InputStream stream) throws IOException {
-        int age = SaveHelper.readInt(stream);
-        int level = SaveHelper.readInt(stream);
-        int maxLevel = SaveHelper.readInt(stream);
-        int starveCounter = SaveHelper.readInt(stream);
-        double food = SaveHelper.readDouble(stream);
-        int growthProgress = SaveHelper.readInt(stream);
-        int cycle = SaveHelper.readInt(stream);
-        IDnaLoader loader = new DnaLoader();
-        IDna dna = loader.load(stream);
-        ICellBehavior behavior = new BehaviorPassive(0);
-        return new Cell(age, level, maxLevel, starveCounter, food, growthProgress, dna, tile, behavior, cycle);
+        Record record = Record.read(tile, stream);
+        return record.toCell(PhenotypeCache.shared().get(record.dna));
     }
 
     /**
-     * Get the amount of growth needed to level up.
+     * Reads the cells of a save and decodes the genomes of all of them in one
+     * pass of a {@link PhenotypeTable}, instead of one lookup per cell. Cells
+     * are only made and put on their tiles by {@link #finish()}.
      */
-    private int getGrowthLevel() {
-        int growthSpeed = ribosome.getGrowthSpeed();
-        return (int) (Math.pow(2 - growthSpeed / 1024, level) + (10 - growthSpeed / 32)) * 100;
-    }
-
-    /**
-     * Private methods are marked with usage tags, indicated after the underscore.
-     * <p> B: Binary Allele</p>
-     * <p> M: (Multi) N-Allele</p>
-     * <p> C: Continous Domain </p>
-     * <p> Di: Discrete Domain </p>
-     */
-    public static class RiboImpl implements IRibosome {
+    public static class Loader {
 
-        private IDna dna;
-        private int genBonus = -1;
-        private int growthFactor = -1;
-        private int growthSpeed = -1;
-        private int growthEff = -1;
-        private int growthBonus = -1;
-        private int foodStorage = -1;
-        private int foodDig = -1;
-        private int foodAbs = -1;
-        private int endurance = -1;
-        private int visRange = -1;
-        private int prodBonus = -1;
-        private int effBonus = -1;
-    
+        private final int geneCount;
+        private final List<Record> records = new ArrayList<>();
 
-        private int wanderer = -1;
-        private int competitive = -1;
-        private int rationing = -1;
-
-        private int memSize = -1;
-        private int forgetOrder = -1;
-        private RiboImpl(IDna dna) {
-            this.dna = dna;
-        }
-
-        @Override
-        public IDna getDna() {
-            return dna;
+        /**
+         * @param geneCount number of genes the genomes of the save have, e.g.
+         *                  {@link PhenotypeTable#LEGACY_TRAIT_COUNT} for
+         *                  older saves.
+         */
+        public Loader(int geneCount) {
+            this.geneCount = geneCount;
         }
 
         /**
-         * Returns 1 iff allele1 is dominant over allele2, -1 iff allele2
-         * is dominant over allele1, and 0 iff they have same dominance.
+         * Reads a cell written by {@link Cell#serialize(OutputStream)}, to be
+         * put on the tile.
          */
-        private int dominant_B(byte dom1, byte dom2) {
-            if((dom1 & 0b11) > (dom2 & 0b11)) {
-                //Allele1 is dominant over the 2nd
-                return 1;
-            } else if((dom1 & 0b11) < (dom2 & 0b11)) {
-                //Alele2 is dominant over the 1st
-                return -1;
-            } else {
-                //Same dominance
-                return 0;
-            }
+        public void read(ITile tile, InputStream stream) throws IOException {
+            records.add(Record.read(tile, stream));
         }
 
         /**
-         * Gets the partial bits.
+         * The number of cells read since the last {@link #finish()}.
          */
-        private int partialBits_BM(int... domBits) {
-            int result = domBits[0] & 0b1100;
-            for(int i = 1; i < domBits.length; i++) {
-                result ^= domBits[i] & 0b1100;
-            }
-            return result >> 2;
+        public int size() {
+            return records.size();
         }
-        
+
         /**
-         * Gets the value of the trait from the alleles. 
+         * Decodes the genomes of all cells read and puts the cells on their
+         * tiles.
          */
-        private int partialValue_CB(int allele1, int dom1, int allele2, int dom2) {
-            int result;
-            switch(partialBits_BM(dom1, dom2)) {
-                case 1:
-                    //Partial 50/50
-                    result = (allele1 + allele2) / 2;
-                    break;
-                case 2:
-                    //Partial 67/33
-                    if(highAllele_B(dom1, dom2)) {
-                        result = (int) (allele1 * 0.67f + allele2 * 0.33f);
-                    } else {
-                        result = (int) (allele1 * 0.33f + allele2 * 0.67f);
-                    }
-                    break;
-                case 3:
-                    //Partial 75/25
-                    if(highAllele_B(dom1, dom2)) {
-                        result = (int) (allele1 * 0.75f + allele2 * 0.25f);
-                    } else {
-                        result = (int) (allele1 * 0.25f + allele2 * 0.75f);
-                    }
-                    break;
-                default:
-                    //Codominance; honestly should be impossible for a continous set.
-                    //Well then I'll just add the speeds because I don't know what to
-                    //put here
-                    result = allele1 + allele2;
-                    break;
-            }
-            return result;
+        public void finish() {
+            int n = records.size();
+            int[] words = new int[n * RiboImpl.DnaBuilder.TRAIT_COUNT];
+            for(int k = 0; k < n; k++) {
+                PhenotypeTable.pack(records.get(k).dna, geneCount, words, k * RiboImpl.DnaBuilder.TRAIT_COUNT);
+            }
+            PhenotypeTable table = PhenotypeTable.decode(words, n);
+            for(int k = 0; k < n; k++) {
+                Record record = records.get(k);
+                record.tile.putCell(record.toCell(table.phenotype(k)));
+            }
+            records.clear();
         }
+    }
 
+    /**
+     * The saved fields of a cell, read before its traits are decoded.
+     */
+    private static final class Record {
 
+        private ITile tile;
+        private int age, level, maxLevel, starveCounter, growthProgress, cycle;
+        private double food;
+        private IDna dna;
 
-        /**
-         * Return true iff allele1 has a higher order than allele2.
-         * Ties by def cannot happen (that would mean codominance)
-         */
-        private boolean highAllele_B(int dom1, int dom2) {
-            return (dom1 & 0b1100) > (dom2 & 0b1100);
+        private static Record read(ITile tile, InputStream stream) throws IOException {
+            Record r = new Record();
+            r.tile = tile;
+            r.age = SaveHelper.readInt(stream);
+            r.level = SaveHelper.readInt(stream);
+            r.maxLevel = SaveHelper.readInt(stream);
+            r.starveCounter = SaveHelper.readInt(stream);
+            r.food = SaveHelper.readDouble(stream);
+            r.growthProgress = SaveHelper.readInt(stream);
+            r.cycle = SaveHelper.readInt(stream);
+            IDnaLoader loader = new DnaLoader();
+            r.dna = loader.load(stream);
+            return r;
         }
 
+        private Cell toCell(Phenotype phenotype) {
+            ICellBehavior behavior = new BehaviorPassive(0);
+            return new Cell(age, level, maxLevel, starveCounter, food, growthProgress, dna, phenotype, tile, behavior, cycle);
+        }
+    }
 
-        private int initValue_CB(byte[] gene) {
-            int result;
-            int dominant = dominant_B(gene[1], gene[3]);
-            if(dominant == 0) {
-                result = partialValue_CB(gene[0], gene[1], gene[2], gene[3]);
-            } else {
-                result = dominant > 0 ? gene[0] : gene[2];
-            }
-            return result;
+    /**
+     * Get the amount of growth needed to level up.
+     */
+    private int getGrowthLevel() {
+        int growthSpeed = ribosome.getGrowthSpeed();
+        return (int) (Math.pow(2 - growthSpeed / 1024, level) + (10 - growthSpeed / 32)) * 100;
+    }
+
+    /**
+     * Reads the traits of a cell from its dna. All traits are decoded into a
+     * {@link Phenotype} before the ribosome is made, so reading one is a field
+     * load.
+     */
+    public static class RiboImpl implements IRibosome {
+
+        private final IDna dna;
+        private final Phenotype phenotype;
+
+        private RiboImpl(IDna dna, Phenotype phenotype) {
+            this.dna = dna;
+            this.phenotype = phenotype;
         }
 
-        
+        @Override
+        public IDna getDna() {
+            return dna;
+        }
+
+        /**
+         * @return the decoded traits.
+         */
+        public Phenotype getPhenotype() {
+            return phenotype;
+        }
 
         @Override
         public int getGeneralBonus() {
-            if(genBonus == -1) {
-                genBonus = initValue_CB(dna.getGene(DnaBuilder.GENB_L));
-            }
-            return genBonus;
+            return phenotype.generalBonus;
         }
 
         @Override
         public int getGrowthFactor() {
-            if(growthFactor == -1) {
-                growthFactor = initValue_CB(dna.getGene(DnaBuilder.GRTF_L));
-            }
-            return growthFactor;
+            return phenotype.growthFactor;
         }
 
         @Override
         public int getGrowthSpeed() {
-            if(growthSpeed == -1) {
-                growthSpeed = initValue_CB(dna.getGene(DnaBuilder.GRTS_L));
-            }
-            return growthSpeed;
+            return phenotype.growthSpeed;
         }
 
         @Override
         public int getGrowthEfficiency() {
-            if(growthEff == -1) {
-                growthEff = initValue_CB(dna.getGene(DnaBuilder.GRTE_L));
-            }
-            return growthEff;
+            return phenotype.growthEfficiency;
         }
 
         @Override
         public int getGrowthBonus() {
-            if(growthBonus == -1) {
-                growthBonus = initValue_CB(dna.getGene(DnaBuilder.GRTB_L));
-            }
-            return growthBonus;
+            return phenotype.growthBonus;
         }
 
         @Override
         public int getFoodStorage() {
-            if(foodStorage == -1) {
-                foodStorage = initValue_CB(dna.getGene(DnaBuilder.FDST_L));
-            }
-            return foodStorage;
+            return phenotype.foodStorage;
         }
 
         @Override
         public int getFoodDigestion() {
-            if(foodDig == -1) {
-                foodDig = initValue_CB(dna.getGene(DnaBuilder.FDDI_L));
-            }
-            return foodDig;
+            return phenotype.foodDigestion;
         }
 
         @Override
         public int getFoodAbsorption() {
-            if(foodAbs == -1) {
-                foodAbs = initValue_CB(dna.getGene(DnaBuilder.FDAB_L));
-            }
-            return foodAbs;
+            return phenotype.foodAbsorption;
         }
 
         @Override
         public int getEndurance() {
-            if(endurance == -1) {
-                endurance = initValue_CB(dna.getGene(DnaBuilder.ENDU_L));
-            }
-            return endurance;
+            return phenotype.endurance;
         }
 
         @Override
         public int getVisionRange() {
-            if(visRange == -1) {
-                visRange = initValue_CB(dna.getGene(DnaBuilder.VSRG_L));
-            }
-            return visRange;
-        }
-
-        /**
-         * Get the contribution value of the allele, with partial rank {@code pRank} and
-         * set size {@code setSize}.
-         * @param allele  allele value
-         * @param pRank   partial rank (k)
-         * @param setSize set size (n)
-         * @return the contribution value. Formula is (9/(19n^3)) * (k^2-k-2kn+n+3n^2+1/9).
-         */
-        private int prodOrEff(int allele, int pRank, int setSize) {
-            return allele * (9 / (19 * setSize * setSize * setSize)) * (pRank * pRank - pRank - 2 * pRank * setSize + setSize + 3 * setSize * setSize + (1/9));
-        }
-
-        private int initProdOrEff(byte[] alleles, byte[] domBits) {
-            int result = 0;
-            int domRank = 0;
-            int i;
-            //Dominance Check
-            Queue<Integer> selected = new Queue<>(domBits.length);
-            for(i = 0; i < alleles.length; i++) {
-                int b = domBits[i];
-                if((b & 0b11) > domRank) {
-                    domRank = b & 0b11;
-                    selected.clear();
-                    selected.enqueue(i);
-                } else if((b & 0b11) == domRank) {
-                    selected.enqueue(i);
-                }
-            }
-            //Partial Check
-            int[] pRanks = new int[4];
-            int pRankCt = 0;
-            i = 0;
-            int partialType = selected.peek() & 0b1100;
-            int[] selectedArr = new int[selected.elementCt()];
-            while(!selected.isEmpty()) {
-                int s = selected.dequeue();
-                selectedArr[i] = s;
-                int pBits = domBits[s] & 0b1100;
-                partialType ^= pBits;
-                if(pRanks[pBits >>> 2] == 0) {
-                    pRankCt++;
-                }
-                pRanks[pBits >>> 2]++;
-                i++;
-            }
-            partialType >>>= 2;
-            if(partialType == 0) {
-                //Codominance. We'll just get the average of all the alleles.
-                for(i = 0; i < selectedArr.length; i++) {
-                    result += alleles[selectedArr[i]];
-                }
-                result /= selectedArr.length;
-            } else {
-                //Partial
-                int curPRank = 0;
-                for(i = 0; i < 4; i++) {
-                    int contribs = 0;
-                    if(pRanks[i] != 0) {
-                        curPRank++;
-                        for(int j = 0; j < selectedArr.length; j++) {
-                            if((domBits[selectedArr[j]] & 0b1100) >> 2 == i) {
-                                contribs += alleles[selectedArr[j]] / pRanks[i];
-                            }
-                        }
-                    }
-                    result += prodOrEff(contribs, curPRank, pRankCt);
-                }
-            }
-            
-
-            return result;
+            return phenotype.visionRange;
         }
 
-        /**
-         * Production bonus is mutually exclusive with Energy Efficiency; both rely
-         * on the same set of alleles.
-         */
         @Override
         public int getProductBonus() {
-            if(prodBonus == -1) {
-                byte[] gene1 = dna.getGene(DnaBuilder.PEF1_L);
-                byte[] gene2 = dna.getGene(DnaBuilder.PEF2_L);
-                int p1 = dominant_B(gene1[1], gene2[1]);
-                int p2 = dominant_B(gene1[3], gene2[3]);
-                if(p1 == 0 && p2 != 0) {
-                    prodBonus = initProdOrEff(new byte[] {gene1[1], gene1[3], gene2[1], gene2[3]}, new byte[] {gene1[0], gene1[2], gene2[0], gene2[2]});
-                } else {
-                    prodBonus = 0;
-                }
-            }
-            return prodBonus;
+            return phenotype.productBonus;
         }
 
-        /**
-         * Energy Efficiency is mutually exclusive with Production bonus; both rely
-         * on the same set of alleles.
-         */
         @Override
         public int getEffBonus() {
-            if(effBonus == -1) {
-                byte[] gene1 = dna.getGene(DnaBuilder.PEF1_L);
-                byte[] gene2 = dna.getGene(DnaBuilder.PEF2_L);
-                int p1 = dominant_B(gene1[1], gene2[1]);
-                int p2 = dominant_B(gene1[3], gene2[3]);
-                if(p1 != 0 && p2 == 0) {
-                    effBonus = initProdOrEff(new byte[] {gene1[1], gene1[3], gene2[1], gene2[3]}, new byte[] {gene1[0], gene1[2], gene2[0], gene2[2]});
-                } else {
-                    return 0;
-                }
-            }
-            return effBonus;
+            return phenotype.effBonus;
         }
 
-        /**
-         * If both wanderer and competitive is present, the effect of one reduces the other, to a
-         * minimum of 0.
-         */
         @Override
         public int isWanderer() {
-            if(wanderer == -1) {
-                wanderer = initValue_CB(dna.getGene(DnaBuilder.WAND_L));
-                //max penalty strength is 50%.
-                float penalty = Math.abs(((byte) initValue_CB(dna.getGene(DnaBuilder.CMPT_L))) / 255f);
-                wanderer *= penalty;
-            }
-            return wanderer;
+            return phenotype.wanderer;
         }
 
         @Override
         public int isCompetitive() {
-            if(competitive == -1) {
-                competitive = initValue_CB(dna.getGene(DnaBuilder.CMPT_L));
-                //max penalty strength is 50%.
-                float penalty = Math.abs(((byte) initValue_CB(dna.getGene(DnaBuilder.WAND_L))) / 255f);
-                competitive *= penalty;
-            }
-            return competitive;
+            return phenotype.competitive;
         }
 
         @Override
         public int isRationing() {
-            if(rationing == -1) {
-                rationing = initValue_CB(dna.getGene(DnaBuilder.RATN_L));
-            }
-            return rationing;
+            return phenotype.rationing;
         }
 
         @Override
         public int getMemSize() {
-            if(memSize == -1) {
-                memSize = initValue_CB(dna.getGene(DnaBuilder.MEMS_L));
-            }
-            return memSize;
+            return phenotype.memSize;
         }
 
         @Override
         public int getForgetOrder() {
-            if(forgetOrder == -1) {
-                forgetOrder = initValue_CB(dna.getGene(DnaBuilder.MEMF_L));
-            }
-            return forgetOrder;
+            return phenotype.forgetOrder;
         }
 
         /**
@@ -557,7 +387,7 @@ public class Cell implements ICell {
             //The traits
             public int[] traits;
 
-            public static final int TRAIT_COUNT = 16;
+            public static final int TRAIT_COUNT = 17;
 
             //Trait indices
             public static final int GENB_L = 0; //General bonus
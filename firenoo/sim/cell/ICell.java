@@ -6,7 +6,8 @@ import java.io.IOException;
 
 import firenoo.dna.IDna;
 
-import firenoo.lib.buffer.IBoundedBuffer;
+import firenoo.sim.buffer.DoubleBoundedBuffer;
+import firenoo.sim.buffer.IntBoundedBuffer;
 
 import firenoo.sim.env.ITile;
 /**
@@ -36,12 +37,12 @@ public interface ICell {
     /**
      * @return Amount of food the cell has internally.
      */
-    IBoundedBuffer<Double> food();
+    DoubleBoundedBuffer food();
 
     /**
      * @return Growth Progress to the next level
      */
-    IBoundedBuffer<Integer> growthProgress();
+    IntBoundedBuffer growthProgress();
 
     /**
      * @return Dna sequence of the cell
@@ -1,7 +1,7 @@
 package firenoo.sim.cell;
 
 import firenoo.sim.env.CellMoveHandler;
-import firenoo.sim.env.ITile;
+import firenoo.sim.env.VisionView;
 
 public interface ICellBehavior {
 
@@ -31,9 +31,9 @@ public interface ICellBehavior {
      * Called during the eat phase (phase 2), which allows behaviors to
      * simulate absorption of food from the environment. Cells are responsible
      * for subtracting the appropriate amount of food from the tile.
-     * @param vision
+     * @param vision the tiles that the cell can "see". Only valid during the call.
      */
-    void eatEvent(ITile[][] vision, int cycle);
+    void eatEvent(VisionView vision, int cycle);
 
     /**
      * Called during the digest phase (phase 3). Cells should use the food in
@@ -44,15 +44,24 @@ public interface ICellBehavior {
      */
     void digestEvent(int cycle);
 
+    /**
+     * Whether the eat event of this behavior is exactly that of
+     * {@link BehaviorPassive}. The environment then runs it for many cells at
+     * once in a {@link MetabolismKernel} instead of calling the event.
+     */
+    default boolean usesPassiveMetabolism() {
+        return false;
+    }
+
     /**
      * Called during the move phase (phase 1), which allows behaviors to 
      * make move requests (simulate moving).
      * Moves and splits cannot occur in the same turn.
-     * @param vision the tiles that the cell can "see". This is represented
-     *               by a 2-D array. A null field represents tiles outside
-     *               the cell's vision. A special BlockTile is used for the walls.
+     * @param vision the tiles that the cell can "see". This is a window into
+     *               the grid; slots outside the cell's vision are not part of
+     *               it. Walls are block tiles. Only valid during the call.
      */
-    void moveEvent(ITile[][] vision, CellMoveHandler bus, int cycle);
+    void moveEvent(VisionView vision, CellMoveHandler bus, int cycle);
 
     /**
      * Called during the split phase (phase 4), which allows cells to create
@@ -60,7 +69,7 @@ public interface ICellBehavior {
      * Moves and splits cannot occur in the same turn.
      * @param vision the tiles that the cell can "see".
      */
-    void splitEvent(ITile[][] vision, CellMoveHandler bus, int cycle);
+    void splitEvent(VisionView vision, CellMoveHandler bus, int cycle);
 
     /**
      * Get the current behavior state. One of
@@ -0,0 +1,125 @@
+package firenoo.sim.cell;
+
+import java.util.Arrays;
+
+import firenoo.sim.buffer.DoubleBoundedBuffer;
+import firenoo.sim.env.GridStore;
+
+/**
+ * Runs the passive eat step of many cells at once. Instead of one
+ * virtual call per cell that reads the ribosome and the buffers one value at a
+ * time, the kernel works in three passes over the cells collected with
+ * {@link #add(ICellBehavior, int)}:
+ * <ul>
+ *  <li>gather - copy food, traits and tile food into flat arrays,</li>
+ *  <li>compute - one tight loop over the arrays, with no calls, that the
+ *      JIT can unroll and vectorize,</li>
+ *  <li>scatter - write back the values that changed.</li>
+ * </ul>
+ * The results are exactly those of {@link BehaviorPassive#eatEvent}. It only
+ * touches the cell and the tile it is on, so the order of the cells does not
+ * matter.
+ * A kernel is not thread-safe; use one per stripe.
+ */
+public class MetabolismKernel {
+
+    private final GridStore grid;
+
+    private ACellBehavior[] behaviors = new ACellBehavior[64];
+    private int[] tiles = new int[64];
+    private int count;
+
+    //Columns, valid for the first count entries during a pass.
+    private double[] cellFood = new double[64];
+    private double[] cellFoodMax = new double[64];
+    private double[] tileFood = new double[64];
+    private double[] amount = new double[64];
+    private boolean[] flag = new boolean[64];
+
+    public MetabolismKernel(GridStore grid) {
+        this.grid = grid;
+    }
+
+    /**
+     * Collects the cell for the next pass if its behavior uses the passive
+     * metabolism.
+     * @param behavior the behavior of the cell
+     * @param tile     grid index of the cell's tile
+     * @return True iff the cell was collected. Otherwise the caller has to run
+     *         the behavior's own event.
+     */
+    public boolean add(ICellBehavior behavior, int tile) {
+        if(!behavior.usesPassiveMetabolism()) {
+            return false;
+        }
+        if(count == behaviors.length) {
+            grow(count * 2);
+        }
+        behaviors[count] = (ACellBehavior) behavior;
+        tiles[count++] = tile;
+        return true;
+    }
+
+    /**
+     * The number of cells collected.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Forgets the collected cells.
+     */
+    public void clear() {
+        Arrays.fill(behaviors, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * Every collected cell absorbs food from its tile, as in
+     * {@link BehaviorPassive#eatEvent}.
+     */
+    public void eat() {
+        final int n = count;
+        for(int k = 0; k < n; k++) {
+            ICell cell = behaviors[k].cell;
+            DoubleBoundedBuffer food = cell.food();
+            cellFood[k] = food.doubleValue();
+            cellFoodMax[k] = food.maxDouble();
+            amount[k] = cell.ribosome().getFoodAbsorption();
+            tileFood[k] = grid.food(tiles[k]);
+        }
+        for(int k = 0; k < n; k++) {
+            double tf = tileFood[k];
+            boolean eats = tf >= BehaviorPassive.MIN_FOOD;
+            //Tile food never goes below 0.
+            double m = Math.min(amount[k], Math.min(tf, cellFoodMax[k] - cellFood[k]));
+            m = eats && m > 0 ? m : 0;
+            amount[k] = m;
+            flag[k] = eats;
+        }
+        for(int k = 0; k < n; k++) {
+            ACellBehavior behavior = behaviors[k];
+            double m = amount[k];
+            if(m > 0) {
+                grid.setFood(tiles[k], tileFood[k] - m);
+                behavior.cell.food().setDouble(cellFood[k] + m);
+            }
+            if(flag[k]) {
+                behavior.state &= ~ICellBehavior.HUNGRY;
+            } else {
+                behavior.state |= ICellBehavior.HUNGRY;
+            }
+        }
+    }
+
+    private void grow(int size) {
+        behaviors = Arrays.copyOf(behaviors, size);
+        tiles = Arrays.copyOf(tiles, size);
+        cellFood = Arrays.copyOf(cellFood, size);
+        cellFoodMax = Arrays.copyOf(cellFoodMax, size);
+        tileFood = Arrays.copyOf(tileFood, size);
+        amount = Arrays.copyOf(amount, size);
+        flag = Arrays.copyOf(flag, size);
+    }
+}
@@ -0,0 +1,319 @@
+package firenoo.sim.cell;
+
+import java.util.Arrays;
+
+import firenoo.sim.env.CellMoveHandler;
+import firenoo.sim.env.GridStore;
+import firenoo.sim.env.VisionView;
+
+/**
+ * Path search over a vision window that works on window-local indices
+ * (i * diameter + j) and reuses its arrays between searches, so a search
+ * allocates nothing once the arrays have grown to fit the window.
+ * <p>
+ * Search rules, kept from the original object-based search:
+ * <ul>
+ *  <li>Stepping onto an empty tile costs 1, onto a tile with a cell costs
+ *      the cell cost. Blocks and slots outside the window are never
+ *      entered.</li>
+ *  <li>Neighbours are looked at in the order north, south, west, east.</li>
+ * </ul>
+ * {@link #searchAllCosts(VisionView, int, int)} answers the question for every
+ * cell cost from 1 to MAX_CELL_COST in one pass; see there.
+ * <p>
+ * A finder is not thread-safe; use {@link #get()} for the finder of the
+ * current thread.
+ */
+public class PathFinder {
+
+    /**
+     * The highest cell cost {@link #searchAllCosts(VisionView, int, int)}
+     * answers for, one per move priority.
+     */
+    public static final int MAX_CELL_COST = CellMoveHandler.MAX_EDGE_WEIGHT;
+
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private static final ThreadLocal<PathFinder> FINDERS = ThreadLocal.withInitial(PathFinder::new);
+
+    //Search generation; window-local labels are stamped with it.
+    private int gen;
+
+    //Result, world indices of the path from the first step to the target.
+    private int[] path = new int[16];
+    private int pathLength;
+
+    //Multi-cost search, window-local. bestOcc is the fewest cells on any
+    //path to the target found so far, valid iff labelGen matches.
+    private int[] labelGen = new int[0];
+    private int[] bestOcc = new int[0];
+    //dist[c - 1][tile]: cheapest cost to the target with cell cost c.
+    private int[][] dist = new int[MAX_CELL_COST][0];
+    //Frontier of the current and the next layer: tiles and their cell counts.
+    private int[] layerTile = new int[64], layerOcc = new int[64];
+    private int[] nextTile = new int[64], nextOcc = new int[64];
+    private int[] nextSlot = new int[0];
+    private int[] nextGen = new int[0];
+    private int layerTag;
+    //World index of the first step for every cell cost.
+    private final int[] firstSteps = new int[MAX_CELL_COST];
+
+    //Window for searches smaller than the caller's vision.
+    private VisionView local;
+
+    /**
+     * @return the finder of the calling thread.
+     */
+    public static PathFinder get() {
+        return FINDERS.get();
+    }
+
+    /**
+     * @return a vision window of this finder over the grid, for searches in a
+     *         smaller window than the one a behavior was given. Reused by the
+     *         next call.
+     */
+    public VisionView localView(GridStore grid) {
+        if(local == null || local.grid() != grid) {
+            local = new VisionView(grid);
+        }
+        return local;
+    }
+
+    /**
+     * Finds the best first step towards the target for every cell cost from
+     * 1 to MAX_CELL_COST in a single pass.
+     * <p>
+     * A path that takes len steps, cellCt of them onto tiles with a cell,
+     * costs len + (c - 1) * cellCt with cell cost c. A path is thus never
+     * worse than another if it is neither longer nor crosses more cells. The
+     * search walks backwards from the target one step at a time, like a BFS,
+     * and keeps for every tile only the paths that cross fewer cells than
+     * every shorter path found for it. These are all the paths that can be
+     * cheapest for some cell cost, so the cheapest cost of every tile for
+     * every cell cost falls out of the same pass. The rules for which tiles
+     * can be entered are those of the class notes.
+     * <p>
+     * Among equally cheap first steps, the one chosen for cell cost 1 wins,
+     * then the order north, south, west, east. The path for cell cost 1 is
+     * available through {@link #pathLength()} and {@link #step(int)}; it
+     * takes the same order among equal steps.
+     * @param targetX world x of the target
+     * @param targetY world y of the target
+     * @return True iff the target can be reached.
+     */
+    public boolean searchAllCosts(VisionView vision, int targetX, int targetY) {
+        pathLength = 0;
+        int d = vision.diameter();
+        int c = vision.range();
+        int ti = targetY - vision.worldY(0);
+        int tj = targetX - vision.worldX(0);
+        if((ti == c && tj == c) || !vision.contains(ti, tj) || vision.isBlock(ti, tj)) {
+            return false;
+        }
+        prepareLabels(d * d);
+        int start = c * d + c;
+        int target = ti * d + tj;
+        label(target, 0, 0);
+        int layerCt = 1;
+        layerTile[0] = target;
+        layerOcc[0] = 0;
+        for(int len = 0; layerCt > 0; len++) {
+            //Collect the labels of the next layer, keeping the fewest cells
+            //per tile.
+            int nextCt = 0;
+            nextTag();
+            for(int k = 0; k < layerCt; k++) {
+                int tile = layerTile[k];
+                if(tile == start) {
+                    //Paths never pass through the start tile.
+                    continue;
+                }
+                int i = tile / d, j = tile - i * d;
+                int occ = layerOcc[k] + (vision.hasCell(i, j) ? 1 : 0);
+                nextCt = offer(vision, i - 1, j, occ, nextCt);
+                nextCt = offer(vision, i + 1, j, occ, nextCt);
+                nextCt = offer(vision, i, j - 1, occ, nextCt);
+                nextCt = offer(vision, i, j + 1, occ, nextCt);
+            }
+            //Swap the buffers and commit the labels that survived.
+            int[] t = layerTile; layerTile = nextTile; nextTile = t;
+            t = layerOcc; layerOcc = nextOcc; nextOcc = t;
+            layerCt = 0;
+            for(int k = 0; k < nextCt; k++) {
+                int tile = layerTile[k];
+                int occ = layerOcc[k];
+                if(isBetter(tile, occ)) {
+                    label(tile, len + 1, occ);
+                    layerTile[layerCt] = tile;
+                    layerOcc[layerCt++] = occ;
+                }
+            }
+        }
+        if(labelGen[start] != gen) {
+            return false;
+        }
+        //Pick the first steps.
+        for(int cost = 1; cost <= MAX_CELL_COST; cost++) {
+            int best = -1, bestCost = UNREACHED;
+            int preferred = cost == 1 ? -1 : firstSteps[0];
+            for(int dir = 0; dir < 4; dir++) {
+                int i = c + DIR_I[dir], j = c + DIR_J[dir];
+                if(!vision.contains(i, j) || vision.isBlock(i, j)) {
+                    continue;
+                }
+                int tile = i * d + j;
+                if(labelGen[tile] != gen) {
+                    continue;
+                }
+                int total = (vision.hasCell(i, j) ? cost : 1) + dist[cost - 1][tile];
+                int world = worldIndex(vision, tile);
+                if(total < bestCost || (total == bestCost && world == preferred)) {
+                    best = world;
+                    bestCost = total;
+                }
+            }
+            firstSteps[cost - 1] = best;
+        }
+        buildCheapestPath(vision);
+        return true;
+    }
+
+    /**
+     * @return the world index of the best first step for the cell cost found
+     *         by the last {@link #searchAllCosts(VisionView, int, int)}.
+     */
+    public int firstStep(int cellCost) {
+        return firstSteps[cellCost - 1];
+    }
+
+    /**
+     * The number of steps of the last path found, including the target.
+     */
+    public int pathLength() {
+        return pathLength;
+    }
+
+    /**
+     * @return the world index of the k-th step of the last path found; step 0
+     *         is the first move, step pathLength() - 1 is the target.
+     */
+    public int step(int k) {
+        return path[k];
+    }
+
+    private static final int[] DIR_I = {-1, 1, 0, 0};
+    private static final int[] DIR_J = {0, 0, -1, 1};
+
+    /**
+     * Offers a label to a tile of the next layer.
+     * @return the new size of the next layer
+     */
+    private int offer(VisionView vision, int i, int j, int occ, int nextCt) {
+        if(!vision.contains(i, j) || vision.isBlock(i, j)) {
+            return nextCt;
+        }
+        int tile = i * vision.diameter() + j;
+        if(!isBetter(tile, occ)) {
+            return nextCt;
+        }
+        if(nextGen[tile] == layerTag) {
+            int slot = nextSlot[tile];
+            nextOcc[slot] = Math.min(nextOcc[slot], occ);
+            return nextCt;
+        }
+        if(nextCt == nextTile.length) {
+            nextTile = Arrays.copyOf(nextTile, nextCt * 2);
+            nextOcc = Arrays.copyOf(nextOcc, nextCt * 2);
+            layerTile = Arrays.copyOf(layerTile, nextCt * 2);
+            layerOcc = Arrays.copyOf(layerOcc, nextCt * 2);
+        }
+        nextGen[tile] = layerTag;
+        nextSlot[tile] = nextCt;
+        nextTile[nextCt] = tile;
+        nextOcc[nextCt] = occ;
+        return nextCt + 1;
+    }
+
+    private boolean isBetter(int tile, int occ) {
+        return labelGen[tile] != gen || occ < bestOcc[tile];
+    }
+
+    private void label(int tile, int len, int occ) {
+        if(labelGen[tile] != gen) {
+            labelGen[tile] = gen;
+            for(int cost = 1; cost <= MAX_CELL_COST; cost++) {
+                dist[cost - 1][tile] = UNREACHED;
+            }
+        }
+        bestOcc[tile] = occ;
+        for(int cost = 1; cost <= MAX_CELL_COST; cost++) {
+            dist[cost - 1][tile] = Math.min(dist[cost - 1][tile], len + (cost - 1) * occ);
+        }
+    }
+
+    /**
+     * Follows the cell cost 1 distances from the first step down to the target.
+     */
+    private void buildCheapestPath(VisionView vision) {
+        int d = vision.diameter();
+        int c = vision.range();
+        GridStore grid = vision.grid();
+        int first = firstSteps[0];
+        int tile = (grid.yOf(first) - vision.worldY(0)) * d + (grid.xOf(first) - vision.worldX(0));
+        int len = dist[0][tile] + 1;
+        if(path.length < len) {
+            path = new int[Math.max(len, path.length * 2)];
+        }
+        path[0] = first;
+        for(int k = 1; k < len; k++) {
+            int i = tile / d, j = tile - i * d;
+            int want = dist[0][tile] - 1;
+            for(int dir = 0; dir < 4; dir++) {
+                int ni = i + DIR_I[dir], nj = j + DIR_J[dir];
+                if(!vision.contains(ni, nj) || (ni == c && nj == c)) {
+                    continue;
+                }
+                int n = ni * d + nj;
+                if(labelGen[n] == gen && dist[0][n] == want) {
+                    tile = n;
+                    break;
+                }
+            }
+            path[k] = worldIndex(vision, tile);
+        }
+        pathLength = len;
+    }
+
+    private static int worldIndex(VisionView vision, int tile) {
+        int d = vision.diameter();
+        int i = tile / d;
+        return vision.grid().index(vision.worldX(tile - i * d), vision.worldY(i));
+    }
+
+    private void prepareLabels(int size) {
+        if(labelGen.length < size) {
+            labelGen = new int[size];
+            bestOcc = new int[size];
+            nextSlot = new int[size];
+            nextGen = new int[size];
+            for(int cost = 0; cost < MAX_CELL_COST; cost++) {
+                dist[cost] = new int[size];
+            }
+            layerTag = 0;
+            gen = 0;
+        }
+        if(++gen == 0) {
+            //Wrapped around; old stamps could collide.
+            Arrays.fill(labelGen, 0);
+            gen = 1;
+        }
+    }
+
+    private void nextTag() {
+        if(++layerTag == 0) {
+            Arrays.fill(nextGen, 0);
+            layerTag = 1;
+        }
+    }
+}
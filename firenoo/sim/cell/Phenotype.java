@@ -0,0 +1,260 @@
+package firenoo.sim.cell;
+
+import firenoo.dna.IDna;
+
+import static firenoo.sim.cell.Cell.RiboImpl.DnaBuilder.*;
+
+/**
+ * The traits of a cell, decoded from its dna once. Decoding follows the rules
+ * {@link Cell.RiboImpl} used to apply on every read, including their oddities:
+ * <ul>
+ *  <li>wanderer and competitive scale each other by the other's value read as
+ *      a byte, over 255, cast back to an int,</li>
+ *  <li>production and efficiency bonus share the PEF genes and at most one of
+ *      them is not 0.</li>
+ * </ul>
+ * Phenotypes never change, so any number of cells and threads may share one.
+ * <p>
+ * Private methods are marked with usage tags, indicated after the underscore.
+ * <p> B: Binary Allele</p>
+ * <p> M: (Multi) N-Allele</p>
+ * <p> C: Continous Domain </p>
+ * <p> Di: Discrete Domain </p>
+ */
+public final class Phenotype {
+
+    public final int generalBonus;
+    public final int growthFactor;
+    public final int growthSpeed;
+    public final int growthEfficiency;
+    public final int growthBonus;
+    public final int foodStorage;
+    public final int foodDigestion;
+    public final int foodAbsorption;
+    public final int endurance;
+    public final int visionRange;
+    public final int productBonus;
+    public final int effBonus;
+    public final int wanderer;
+    public final int competitive;
+    public final int rationing;
+    public final int memSize;
+    public final int forgetOrder;
+
+    /**
+     * @param values the traits, in the order of the gene indices of
+     *               {@link Cell.RiboImpl.DnaBuilder}. The PEF1 and PEF2 slots
+     *               hold the production and efficiency bonus.
+     */
+    Phenotype(int[] values) {
+        this.generalBonus = values[GENB_L];
+        this.growthFactor = values[GRTF_L];
+        this.growthSpeed = values[GRTS_L];
+        this.growthEfficiency = values[GRTE_L];
+        this.growthBonus = values[GRTB_L];
+        this.foodStorage = values[FDST_L];
+        this.foodDigestion = values[FDDI_L];
+        this.foodAbsorption = values[FDAB_L];
+        this.endurance = values[ENDU_L];
+        this.visionRange = values[VSRG_L];
+        this.wanderer = values[WAND_L];
+        this.competitive = values[CMPT_L];
+        this.rationing = values[RATN_L];
+        this.productBonus = values[PEF1_L];
+        this.effBonus = values[PEF2_L];
+        this.memSize = values[MEMS_L];
+        this.forgetOrder = values[MEMF_L];
+    }
+
+    /**
+     * Decodes all traits of the dna.
+     */
+    public static Phenotype decode(IDna dna) {
+        int[] words = new int[TRAIT_COUNT];
+        PhenotypeTable.pack(dna, words, 0);
+        return decode(words, 0);
+    }
+
+    /**
+     * Decodes all traits of a genome given as packed trait words; see
+     * {@link PhenotypeTable}.
+     * @param offset index of the first word of the genome
+     */
+    public static Phenotype decode(int[] words, int offset) {
+        int[] values = new int[TRAIT_COUNT];
+        decode(words, offset, values);
+        return new Phenotype(values);
+    }
+
+    /**
+     * Decodes one genome of packed trait words into values, in the layout
+     * {@link #Phenotype(int[])} takes.
+     */
+    static void decode(int[] words, int offset, int[] values) {
+        for(int t = 0; t < TRAIT_COUNT; t++) {
+            if(t != PEF1_L && t != PEF2_L) {
+                int w = words[offset + t];
+                values[t] = initValue_CB((byte) w, (byte) (w >> 8), (byte) (w >> 16), (byte) (w >> 24));
+            }
+        }
+        int w1 = words[offset + PEF1_L], w2 = words[offset + PEF2_L];
+        int a1 = (byte) w1, d1 = (byte) (w1 >> 8), a2 = (byte) (w1 >> 16), d2 = (byte) (w1 >> 24);
+        int b1 = (byte) w2, e1 = (byte) (w2 >> 8), b2 = (byte) (w2 >> 16), e2 = (byte) (w2 >> 24);
+        values[PEF1_L] = productBonus_M(a1, d1, a2, d2, b1, e1, b2, e2);
+        values[PEF2_L] = effBonus_M(a1, d1, a2, d2, b1, e1, b2, e2);
+        //Wanderer and competitive scale each other by the other's
+        //plain value; max penalty strength is 50%.
+        int wand = values[WAND_L], cmpt = values[CMPT_L];
+        values[WAND_L] = (int) (wand * Math.abs(((byte) cmpt) / 255f));
+        values[CMPT_L] = (int) (cmpt * Math.abs(((byte) wand) / 255f));
+    }
+
+    /**
+     * Returns 1 iff allele1 is dominant over allele2, -1 iff allele2
+     * is dominant over allele1, and 0 iff they have same dominance.
+     */
+    static int dominant_B(int dom1, int dom2) {
+        return Integer.compare(dom1 & 0b11, dom2 & 0b11);
+    }
+
+    /**
+     * Gets the value of the trait from the alleles.
+     */
+    private static int partialValue_CB(int allele1, int dom1, int allele2, int dom2) {
+        switch(((dom1 & 0b1100) ^ (dom2 & 0b1100)) >> 2) {
+            case 1:
+                //Partial 50/50
+                return (allele1 + allele2) / 2;
+            case 2:
+                //Partial 67/33
+                if(highAllele_B(dom1, dom2)) {
+                    return (int) (allele1 * 0.67f + allele2 * 0.33f);
+                }
+                return (int) (allele1 * 0.33f + allele2 * 0.67f);
+            case 3:
+                //Partial 75/25
+                if(highAllele_B(dom1, dom2)) {
+                    return (int) (allele1 * 0.75f + allele2 * 0.25f);
+                }
+                return (int) (allele1 * 0.25f + allele2 * 0.75f);
+            default:
+                //Codominance; honestly should be impossible for a continous set.
+                //Well then I'll just add the speeds because I don't know what to
+                //put here
+                return allele1 + allele2;
+        }
+    }
+
+    /**
+     * Return true iff allele1 has a higher order than allele2.
+     */
+    private static boolean highAllele_B(int dom1, int dom2) {
+        return (dom1 & 0b1100) > (dom2 & 0b1100);
+    }
+
+    /**
+     * The value of a binary allele gene, from its four bytes.
+     */
+    static int initValue_CB(int allele1, int dom1, int allele2, int dom2) {
+        int dominant = dominant_B(dom1, dom2);
+        if(dominant == 0) {
+            return partialValue_CB(allele1, dom1, allele2, dom2);
+        }
+        return dominant > 0 ? allele1 : allele2;
+    }
+
+    /**
+     * Production bonus is mutually exclusive with Energy Efficiency; both rely
+     * on the same set of alleles.
+     */
+    static int productBonus_M(int a1, int d1, int a2, int d2, int b1, int e1, int b2, int e2) {
+        if(dominant_B(d1, e1) == 0 && dominant_B(d2, e2) != 0) {
+            return prodOrEff_M(d1, d2, e1, e2, a1, a2, b1, b2);
+        }
+        return 0;
+    }
+
+    /**
+     * Energy Efficiency is mutually exclusive with Production bonus; both rely
+     * on the same set of alleles.
+     */
+    static int effBonus_M(int a1, int d1, int a2, int d2, int b1, int e1, int b2, int e2) {
+        if(dominant_B(d1, e1) != 0 && dominant_B(d2, e2) == 0) {
+            return prodOrEff_M(d1, d2, e1, e2, a1, a2, b1, b2);
+        }
+        return 0;
+    }
+
+    /**
+     * Get the contribution value of the allele, with partial rank {@code pRank} and
+     * set size {@code setSize}.
+     * @param allele  allele value
+     * @param pRank   partial rank (k)
+     * @param setSize set size (n)
+     * @return the contribution value. Formula is (9/(19n^3)) * (k^2-k-2kn+n+3n^2+1/9).
+     */
+    private static int prodOrEff(int allele, int pRank, int setSize) {
+        return allele * (9 / (19 * setSize * setSize * setSize)) * (pRank * pRank - pRank - 2 * pRank * setSize + setSize + 3 * setSize * setSize + (1/9));
+    }
+
+    /**
+     * Combines four alleles. The dominance bytes of the PEF genes act as the
+     * alleles here, and their allele bytes as the dominance.
+     */
+    private static int prodOrEff_M(int al0, int al1, int al2, int al3, int db0, int db1, int db2, int db3) {
+        int[] alleles = {al0, al1, al2, al3};
+        int[] domBits = {db0, db1, db2, db3};
+        //Dominance check: the alleles with the highest rank, as a bit set.
+        int selected = 0;
+        int domRank = 0;
+        for(int i = 0; i < 4; i++) {
+            int rank = domBits[i] & 0b11;
+            if(rank > domRank) {
+                domRank = rank;
+                selected = 1 << i;
+            } else if(rank == domRank) {
+                selected |= 1 << i;
+            }
+        }
+        //Partial check. The XOR used to start from the partial bits of the
+        //first selected index rather than its dominance byte, which are 0.
+        int[] pRanks = new int[4];
+        int pRankCt = 0;
+        int partialType = 0;
+        int selectedCt = Integer.bitCount(selected);
+        for(int s = selected; s != 0; s &= s - 1) {
+            int pBits = domBits[Integer.numberOfTrailingZeros(s)] & 0b1100;
+            partialType ^= pBits;
+            if(pRanks[pBits >>> 2] == 0) {
+                pRankCt++;
+            }
+            pRanks[pBits >>> 2]++;
+        }
+        partialType >>>= 2;
+        int result = 0;
+        if(partialType == 0) {
+            //Codominance. We'll just get the average of all the alleles.
+            for(int s = selected; s != 0; s &= s - 1) {
+                result += alleles[Integer.numberOfTrailingZeros(s)];
+            }
+            result /= selectedCt;
+        } else {
+            //Partial
+            int curPRank = 0;
+            for(int i = 0; i < 4; i++) {
+                int contribs = 0;
+                if(pRanks[i] != 0) {
+                    curPRank++;
+                    for(int s = selected; s != 0; s &= s - 1) {
+                        int j = Integer.numberOfTrailingZeros(s);
+                        if((domBits[j] & 0b1100) >> 2 == i) {
+                            contribs += alleles[j] / pRanks[i];
+                        }
+                    }
+                }
+                result += prodOrEff(contribs, curPRank, pRankCt);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,216 @@
+package firenoo.sim.cell;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import firenoo.dna.IDna;
+
+import static firenoo.sim.cell.Cell.RiboImpl.DnaBuilder.TRAIT_COUNT;
+
+/**
+ * Interns decoded phenotypes by genome content, so cells with identical genes
+ * (clones, split offspring, cells of a loaded save) share one phenotype and
+ * decode it only once.
+ * <p>
+ * A lookup first checks a small table keyed by the dna object itself; a hit
+ * there reads no genes, allocates nothing and takes no lock. The table holds
+ * one entry per slot and keeps the last MEMO_SIZE dna objects it saw alive
+ * until they are replaced or {@link #clear()} is called. It assumes a dna is
+ * not changed once it was looked up, which holds for dna built by
+ * {@link Cell.RiboImpl.DnaBuilder} or loaded from a save.
+ * <p>
+ * Otherwise genomes are compared by their packed trait words, in segments
+ * that each drop their least recently used genomes once they hold more than
+ * their share of the capacity. Each segment has its own lock and decoding
+ * runs outside of it, so the cache is safe to use from any thread.
+ */
+public class PhenotypeCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int MEMO_SIZE = 1024;
+    private static final int SEGMENTS = 16;
+
+    private static final PhenotypeCache SHARED = new PhenotypeCache(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    private final Memo[] memo = new Memo[MEMO_SIZE];
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    public PhenotypeCache(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1!");
+        }
+        this.capacity = capacity;
+        //Small caches get fewer segments, so none of them ends up empty.
+        int count = Math.min(SEGMENTS, Integer.highestOneBit(capacity));
+        this.segments = new Segment[count];
+        for(int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    /**
+     * @return the cache cells use when they are created.
+     */
+    public static PhenotypeCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the phenotype of the dna, decoded now or taken from the cache.
+     */
+    public Phenotype get(IDna dna) {
+        return get(dna, TRAIT_COUNT);
+    }
+
+    /**
+     * @param geneCount number of genes the dna has; see
+     *                  {@link PhenotypeTable#pack(IDna, int, int[], int)}
+     * @return the phenotype of the dna, decoded now or taken from the cache.
+     */
+    public Phenotype get(IDna dna, int geneCount) {
+        int slot = mix(System.identityHashCode(dna)) & (MEMO_SIZE - 1);
+        //Memo fields are final, so a racy read sees either null or a whole entry.
+        Memo m = memo[slot];
+        if(m != null && m.dna == dna && m.geneCount == geneCount) {
+            hits.increment();
+            return m.phenotype;
+        }
+        int[] words = new int[TRAIT_COUNT];
+        PhenotypeTable.pack(dna, geneCount, words, 0);
+        Genome genome = new Genome(words);
+        Segment segment = segments[mix(genome.hash) & (segments.length - 1)];
+        Phenotype phenotype;
+        synchronized(segment) {
+            phenotype = segment.get(genome);
+        }
+        if(phenotype != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            Phenotype decoded = Phenotype.decode(words, 0);
+            synchronized(segment) {
+                //Another thread may have decoded the same genome meanwhile.
+                phenotype = segment.putIfAbsent(genome, decoded);
+            }
+            if(phenotype == null) {
+                phenotype = decoded;
+            }
+        }
+        memo[slot] = new Memo(dna, geneCount, phenotype);
+        return phenotype;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The number of genomes in the cache.
+     */
+    public int size() {
+        int size = 0;
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The number of lookups that found the genome.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of lookups that had to decode.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    public void clear() {
+        Arrays.fill(memo, null);
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                segment.clear();
+            }
+        }
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Spreads the high bits of a hash into the low bits used as an index.
+     */
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The phenotype last looked up for a dna object.
+     */
+    private static final class Memo {
+
+        private final IDna dna;
+        private final int geneCount;
+        private final Phenotype phenotype;
+
+        private Memo(IDna dna, int geneCount, Phenotype phenotype) {
+            this.dna = dna;
+            this.geneCount = geneCount;
+            this.phenotype = phenotype;
+        }
+    }
+
+    /**
+     * One part of the content cache, in access order. Guarded by itself.
+     */
+    private static final class Segment extends LinkedHashMap<Genome, Phenotype> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Genome, Phenotype> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * Packed trait words of a genome, compared by content.
+     */
+    private static final class Genome {
+
+        private final int[] words;
+        private final int hash;
+
+        private Genome(int[] words) {
+            this.words = words;
+            this.hash = Arrays.hashCode(words);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Genome && ((Genome) o).hash == hash && Arrays.equals(((Genome) o).words, words);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package firenoo.sim.cell;
+
+import firenoo.dna.IDna;
+
+import static firenoo.sim.cell.Cell.RiboImpl.DnaBuilder.*;
+
+/**
+ * The traits of many genomes, decoded in one pass and stored by column: one
+ * int array per trait, with one entry per genome. Meant for seeding or loading
+ * many cells at once, like {@link Cell.Loader} does for saves; the columns can
+ * be read directly, and {@link #phenotype(int)} hands out the phenotype of a
+ * single genome for
+ * {@link Cell#Cell(IDna, Phenotype, firenoo.sim.env.ITile, ICellBehavior, int)}.
+ * <p>
+ * Genomes come in as packed trait words, TRAIT_COUNT per genome, in the
+ * layout of {@link Cell.RiboImpl.DnaBuilder#traits}: allele1 in the lowest
+ * byte, then dom1, allele2 and dom2. Traits are indexed like the genes; the
+ * PEF1 and PEF2 columns hold the production and efficiency bonus.
+ * The decode rules are those of {@link Phenotype}.
+ */
+public class PhenotypeTable {
+
+    private final int size;
+    private final int[][] columns;
+
+    private PhenotypeTable(int size) {
+        this.size = size;
+        this.columns = new int[TRAIT_COUNT][size];
+    }
+
+    /**
+     * Decodes the genomes.
+     * @param words packed trait words, TRAIT_COUNT per genome
+     * @param count number of genomes
+     */
+    public static PhenotypeTable decode(int[] words, int count) {
+        return decode(words, 0, count);
+    }
+
+    /**
+     * Decodes the genomes, starting at the given word.
+     */
+    public static PhenotypeTable decode(int[] words, int offset, int count) {
+        if(words.length - offset < count * TRAIT_COUNT) {
+            throw new IllegalArgumentException("Expected " + count * TRAIT_COUNT + " words, got " + (words.length - offset));
+        }
+        PhenotypeTable table = new PhenotypeTable(count);
+        int[][] c = table.columns;
+        int[] values = new int[TRAIT_COUNT];
+        for(int k = 0, base = offset; k < count; k++, base += TRAIT_COUNT) {
+            Phenotype.decode(words, base, values);
+            for(int t = 0; t < TRAIT_COUNT; t++) {
+                c[t][k] = values[t];
+            }
+        }
+        return table;
+    }
+
+    /**
+     * The number of genes of genomes made before the forget order gene
+     * (MEMF) was added, i.e. saves before version 0.3.
+     */
+    public static final int LEGACY_TRAIT_COUNT = 16;
+
+    /**
+     * Packs the genes of the dna into trait words, for genomes that are only
+     * available as dna, e.g. loaded from a save.
+     * @param words  the array to write into
+     * @param offset index of the first word of the genome
+     */
+    public static void pack(IDna dna, int[] words, int offset) {
+        pack(dna, TRAIT_COUNT, words, offset);
+    }
+
+    /**
+     * Packs the genes of a genome that may be shorter than TRAIT_COUNT, like
+     * the LEGACY_TRAIT_COUNT genes of older saves. The missing traits are
+     * packed as 0.
+     * @param geneCount number of genes the dna has
+     */
+    public static void pack(IDna dna, int geneCount, int[] words, int offset) {
+        int genes = Math.min(geneCount, TRAIT_COUNT);
+        for(int t = 0; t < genes; t++) {
+            byte[] gene = dna.getGene(t);
+            words[offset + t] = (gene[0] & 0xFF) | (gene[1] & 0xFF) << 8 | (gene[2] & 0xFF) << 16 | gene[3] << 24;
+        }
+        for(int t = genes; t < TRAIT_COUNT; t++) {
+            words[offset + t] = 0;
+        }
+    }
+
+    /**
+     * The number of genomes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the values of the trait for all genomes. Not a copy.
+     */
+    public int[] column(int trait) {
+        return columns[trait];
+    }
+
+    /**
+     * @return the phenotype of the genome.
+     */
+    public Phenotype phenotype(int genome) {
+        int[] values = new int[TRAIT_COUNT];
+        for(int t = 0; t < TRAIT_COUNT; t++) {
+            values[t] = columns[t][genome];
+        }
+        return new Phenotype(values);
+    }
+}
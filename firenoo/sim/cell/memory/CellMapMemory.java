@@ -3,44 +3,70 @@ package firenoo.sim.cell.memory;
 import firenoo.sim.env.IEnvironment;
 import firenoo.sim.env.ITile;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.Random;
+import java.util.Arrays;
 
 import firenoo.sim.cell.ICell;
 import firenoo.lib.structs.MinPriorityQueue;
 import firenoo.lib.structs.Queue;
 import firenoo.lib.structs.Vec2i;
 
+/**
+ * What a cell remembers of the map, in blocks of CHUNK_SIZE x CHUNK_SIZE
+ * tiles. Blocks live in slots of one flat slab, stored by column like the
+ * {@link firenoo.sim.env.GridStore}: food as 8.8 fixed point in a char per
+ * tile, the cells of a block as bits of a short, and the block position and
+ * eviction order as ints per slot. The slab grows with the number of blocks,
+ * up to memSize + 1.
+ */
 public class CellMapMemory {
-    
+
     private static final int CHUNK_SIZE = 3;
+    private static final int TILES = CHUNK_SIZE * CHUNK_SIZE;
+
+    //Food is stored as food * FOOD_SCALE, rounded and capped at MAX_FOOD.
+    private static final double FOOD_SCALE = 256;
+    private static final char MAX_FOOD = 0xFFFE;
+    private static final char UNKNOWN_FOOD = 0xFFFF;
+
+    private static final int NONE = -1;
 
     private ICell cell;
-        
+
     private int replacementPolicy;
 
     private int memSize;
- 
+
     private int blocks = 0;
 
     private final int initX, initY;
 
-    //Mainly for quickly finding a block.
-    private Map<Vec2i, Block> keyAccess;
+    //Mainly for quickly finding a block. Maps the packed block coords, see
+    //LongIntMap#pack, to the slot of the block.
+    private LongIntMap keyAccess;
+
+    //The slab. Slots 0 to slotCt - 1 hold a block.
+    private int slotCt;
+    private final int maxSlots;
+    private char[] food;
+    private short[] cells;
+    private int[] blockX, blockY;
+    private int[] lastUsed;
+
+    //Eviction order. Slots are linked from oldest to newest lastUsed, so the
+    //earliest and latest used block are at the ends of the list.
+    private int[] older, newer;
+    private int oldest = NONE, newest = NONE;
 
     public CellMapMemory(ICell cell, int cycle) {
         this.cell = cell;
         this.memSize = cell.ribosome().getMemSize();
         this.replacementPolicy = cell.ribosome().getForgetOrder();
-        this.keyAccess = new HashMap<>((int)(memSize * 4.0 / 3));
+        this.keyAccess = new LongIntMap(memSize + 1);
         this.initX = cell.getTile().getX();
         this.initY = cell.getTile().getY();
-        keyAccess.put(new Vec2i(0, 0), new Block(0, 0, CHUNK_SIZE, cycle));
+        this.maxSlots = Math.max(memSize + 1, 1);
+        resize(Math.min(maxSlots, 4));
+        initBlock(slotCt++, 0, 0, cycle);
     }
 
     /**
@@ -48,39 +74,8 @@ public class CellMapMemory {
      * @param cycle
      */
     public void updateAll(int cycle, ITile... tiles) {
-        Map<Vec2i, List<ITile>> batches = new HashMap<>((int)(tiles.length * 4.0 / 3));
-        Vec2i[] transforms;
         for(ITile tile : tiles) {
-            transforms = transformW2B(tile.getX(), tile.getY());
-            if(batches.containsKey(transforms[0])) {
-                batches.get(transforms[0]).add(tile);
-            } else {
-                List<ITile> list = new ArrayList<>(tiles.length);
-                list.add(tile);
-                batches.put(transforms[0].deepCopy(), list);
-            }
-        }
-        Block block;
-        for(Map.Entry<Vec2i, List<ITile>> batch : batches.entrySet()) {
-            Vec2i bPos = batch.getKey();
-            block = keyAccess.get(bPos);
-            List<ITile> toUpdate = batch.getValue();
-            int size = toUpdate.size();
-            int[] coordXs = new int[size];
-            int[] coordYs = new int[size];
-            double[] foods = new double[size];
-            boolean[] hasCells = new boolean[size];
-            if(block == null) {
-                block = allocBlock(bPos.x, bPos.y, cycle);
-            }
-            for(int i = 0; i < size; i++) {
-                ITile t = toUpdate.get(i);
-                coordXs[i] = t.getX();
-                coordYs[i] = t.getY();
-                foods[i] = t.food().value();
-                hasCells[i] = t.getCell() != null;
-            }
-            block.update(coordXs, coordYs, foods, hasCells, cycle);
+            update(tile, cycle);
         }
     }
 
@@ -88,19 +83,44 @@ public class CellMapMemory {
      * Update the memory map
      */
     public void update(ITile tile, int cycle) {
-        Vec2i[] transforms = transformW2B(tile.getX(), tile.getY());
-        Block block = keyAccess.getOrDefault(transforms[0], allocBlock(transforms[0].x, transforms[0].y, cycle));
-        block.update(transforms[1].x, transforms[1].y, tile.food().value(), tile.getCell() != null, cycle);
+        int x = tile.getX(), y = tile.getY();
+        long key = blockKey(x, y);
+        int slot = keyAccess.get(key);
+        if(slot == LongIntMap.MISSING) {
+            slot = allocBlock(LongIntMap.unpackX(key), LongIntMap.unpackY(key), cycle);
+        }
+        int tileIndex = tileIndex(x, y);
+        food[slot * TILES + tileIndex] = quantize(tile.food().doubleValue());
+        if(tile.getCell() != null) {
+            cells[slot] |= 1 << tileIndex;
+        } else {
+            cells[slot] &= ~(1 << tileIndex);
+        }
+        touch(slot, cycle);
     }
 
+    /**
+     * @return the food remembered on the tile, or -1 if it is unknown.
+     */
     public double queryF(int x, int y, int cycle) {
-        Vec2i[] transforms = transformW2B(x, y);
-        return keyAccess.get(transforms[0]).getF(x, y, cycle);
+        int slot = keyAccess.get(blockKey(x, y));
+        if(slot == LongIntMap.MISSING) {
+            return -1;
+        }
+        touch(slot, cycle);
+        return foodAt(slot, tileIndex(x, y));
     }
 
+    /**
+     * @return true iff a cell was remembered on the tile.
+     */
     public boolean queryC(int x, int y, int cycle) {
-        Vec2i[] transforms = transformW2B(x, y);
-        return keyAccess.get(transforms[0]).getC(x, y, cycle);
+        int slot = keyAccess.get(blockKey(x, y));
+        if(slot == LongIntMap.MISSING) {
+            return false;
+        }
+        touch(slot, cycle);
+        return cellAt(slot, tileIndex(x, y));
     }
 
     /**
@@ -109,35 +129,44 @@ public class CellMapMemory {
      * @param y the absolute coordinate y (use from the world map)
      */
     public Object[] query2(int x, int y, int cycle) {
-        Vec2i[] transforms = transformW2B(x, y);
-        return keyAccess.get(transforms[0]).get(transforms[1].x, transforms[1].y, cycle);
+        int slot = keyAccess.get(blockKey(x, y));
+        if(slot == LongIntMap.MISSING) {
+            return new Object[] {-1.0, false};
+        }
+        touch(slot, cycle);
+        int tileIndex = tileIndex(x, y);
+        return new Object[] {foodAt(slot, tileIndex), cellAt(slot, tileIndex)};
     }
 
     /**
-     * Transforms specified world coordinates to block coordinates, with the offset.
-     * @return index 0 - block coords.
-     *         index 1 - offset.
+     * Transforms specified world coordinates to the packed coords of the block
+     * that stores them. Block (0, 0) is centered on the initial tile.
      */
-    private Vec2i[] transformW2B(int x, int y) {
-        x -= initX;
-        y -= initY;
-        Vec2i blockPos = new Vec2i(0, 0);
-        Vec2i offset = new Vec2i(0, 0);
-        if(x > 0) {
-            blockPos.x = (x + 1) / CHUNK_SIZE;
-            offset.x = x - (blockPos.x * CHUNK_SIZE);
-        } else if(x < 0) {
-            blockPos.x = (x - 1) / CHUNK_SIZE;
-            offset.x = x + (blockPos.x * CHUNK_SIZE);
-        }
-        if(y > 0) {
-            blockPos.y = (y + 1) / CHUNK_SIZE;
-            offset.y = x - (blockPos.x * CHUNK_SIZE);
-        } else if(y < 0) {
-            blockPos.y = (y - 1) / CHUNK_SIZE;
-            offset.y = y - (blockPos.y * CHUNK_SIZE);
-        }
-        return new Vec2i[] {blockPos, offset};
+    private long blockKey(int x, int y) {
+        return LongIntMap.pack(Math.floorDiv(x - initX + 1, CHUNK_SIZE), Math.floorDiv(y - initY + 1, CHUNK_SIZE));
+    }
+
+    /**
+     * Transforms a world coordinate x to the offset inside its block, 0 to
+     * CHUNK_SIZE - 1.
+     */
+    private int offsetX(int x) {
+        return Math.floorMod(x - initX + 1, CHUNK_SIZE);
+    }
+
+    /**
+     * Transforms a world coordinate y to the offset inside its block, 0 to
+     * CHUNK_SIZE - 1.
+     */
+    private int offsetY(int y) {
+        return Math.floorMod(y - initY + 1, CHUNK_SIZE);
+    }
+
+    /**
+     * @return the index of the world coordinates inside their block.
+     */
+    private int tileIndex(int x, int y) {
+        return offsetY(y) * CHUNK_SIZE + offsetX(x);
     }
 
     /**
@@ -148,17 +177,17 @@ public class CellMapMemory {
      * @param oy offset y
      */
     private Vec2i transformB2W(int bx, int by, int ox, int oy) {
-        return new Vec2i(bx * CHUNK_SIZE + ox + initX, by * CHUNK_SIZE + oy + initY);
+        return new Vec2i(bx * CHUNK_SIZE + ox - 1 + initX, by * CHUNK_SIZE + oy - 1 + initY);
     }
 
     /**
-     * Queries if there is a block that stores the specified world coordinates. 
+     * Queries if there is a block that stores the specified world coordinates.
      * @param x the absolute coordinate x (use from world map)
      * @param y the absolute coordinate y (use from world map)
      * @return True iff there is a block in memory with the coordinates in storage
      */
     public boolean containsBlock(int x, int y) {
-        return keyAccess.containsKey(transformW2B(x, y)[0]);
+        return keyAccess.containsKey(blockKey(x, y));
     }
 
     /**
@@ -174,51 +203,52 @@ public class CellMapMemory {
      * @return the absolute coordinates of the found result, or null if no result could be found.
      */
     public Vec2i findClosest(int originX, int originY, double minFood, boolean hasCell, int cycle) {
-        Vec2i[] transforms = transformW2B(originX, originY);
-        MinPriorityQueue<Vec2i> bPositions = new MinPriorityQueue<>(memSize);
-        for(Vec2i pos : keyAccess.keySet()) {
-            bPositions.enqueue(pos, IEnvironment.taxicabDist(pos, transforms[0]));
+        long origin = blockKey(originX, originY);
+        int originBX = LongIntMap.unpackX(origin), originBY = LongIntMap.unpackY(origin);
+        MinPriorityQueue<Integer> bPositions = new MinPriorityQueue<>(slotCt);
+        for(int slot = 0; slot < slotCt; slot++) {
+            bPositions.enqueue(slot, IEnvironment.taxicabDist(blockX[slot], blockY[slot], originBX, originBY));
         }
         Queue<Vec2i> bfs = new Queue<>(CHUNK_SIZE * CHUNK_SIZE / 2);
         Vec2i result = null;
-        Block block;
         MinPriorityQueue<Vec2i> bestFoodPos = new MinPriorityQueue<>(memSize);
         while(!bPositions.isEmpty()){
             int o_x, o_y; //init block pos
-            Vec2i b = bPositions.dequeue();
-            block = keyAccess.get(b);
-            if(block == null) continue;
-            if(transforms[0].x > b.x) {
-                o_x = 1;
-            } else if(transforms[0].x < b.x) {
-                o_x = -1;
+            Integer slot = bPositions.dequeue();
+            if(slot == null) continue;
+            int bx = blockX[slot], by = blockY[slot];
+            //Start from the edge of the block that faces the origin.
+            if(originBX > bx) {
+                o_x = CHUNK_SIZE - 1;
+            } else if(originBX < bx) {
+                o_x = 0;
             } else {
-                o_x = transforms[1].x;
+                o_x = offsetX(originX);
             }
 
-            if(transforms[0].y > b.y) {
-                o_y = 1;
-            } else if(transforms[0].y < b.y) {
-                o_y = -1;
+            if(originBY > by) {
+                o_y = CHUNK_SIZE - 1;
+            } else if(originBY < by) {
+                o_y = 0;
             } else {
-                o_y = transforms[1].y;
+                o_y = offsetY(originY);
             }
             bfs.enqueue(new Vec2i(o_x, o_y));
             while(!bfs.isEmpty()) {
                 Vec2i offset = bfs.dequeue();
-                Object[] toTest = block.get(offset.x, offset.y, cycle);
-                if((double) toTest[0] > minFood) {
-                    Vec2i realCoords = transformB2W(b.x, b.y, offset.x, offset.y);
+                touch(slot, cycle);
+                if(foodAt(slot, offset.y * CHUNK_SIZE + offset.x) > minFood) {
+                    Vec2i realCoords = transformB2W(bx, by, offset.x, offset.y);
                     bestFoodPos.enqueue(realCoords, IEnvironment.taxicabDist(originX, originY, realCoords.x, realCoords.y));
                 }
             }
 
             if(bestFoodPos.isEmpty()) {
-                
+
             } else {
-                
+
             }
-            
+
         }
 
         return result;
@@ -228,185 +258,134 @@ public class CellMapMemory {
      * Allocates a block to memory.
      * @param x the block coordinate x (convert first from the world map)
      * @param y the block coordinate y (convert first from the world map)
-     * @return the block that was allocated
+     * @return the slot of the block that was allocated
      */
-    private Block allocBlock(int x, int y, int cycle) {
+    private int allocBlock(int x, int y, int cycle) {
+        int slot;
         if(blocks < memSize) {
             blocks++;
+            if(slotCt == cells.length) {
+                resize(Math.min(slotCt * 2, maxSlots));
+            }
+            slot = slotCt++;
         } else {
             switch(replacementPolicy) {
                 case 1:
                     //Latest first
-                    keyAccess.entrySet().stream().max(Comparator.comparingInt(a -> a.getValue().lastUsed)).ifPresent(v -> {
-                        keyAccess.remove(v.getKey());
-                        Block toRemove = v.getValue();
-                        if(toRemove.prevBlock[0] != null) {
-                            toRemove.prevBlock[0].nextBlock[0] = null;
-                        }
-                        if(toRemove.prevBlock[1] != null) {
-                            toRemove.prevBlock[1].nextBlock[1] = null;
-                        }
-                        if(toRemove.nextBlock[0] != null) {
-                            toRemove.nextBlock[0].prevBlock[0] = null;
-                        }
-                        if(toRemove.nextBlock[1] != null) {
-                            toRemove.nextBlock[1].prevBlock[1] = null;
-                        }
-                    });
+                    slot = newest;
                     break;
                 case 2:
                     //Delete at random
-                    Random random = cell.getRandom();
-                    Optional.ofNullable(keyAccess.entrySet().stream().collect(() -> new MinPriorityQueue<Map.Entry<Vec2i, Block>>(keyAccess.size()),(queue, entry) -> {
-                        queue.enqueue(entry, random.nextInt());
-                    }, (queue1, queue2) -> {
-                        int priority = queue2.peekPriority();
-                        while(!queue2.isEmpty() && priority <  queue1.peekPriority()) {
-                            queue1.enqueue(queue1.dequeue(), priority);
-                            priority = queue2.peekPriority();
-                        }
-                    }).dequeue()).ifPresent(v -> {
-                        keyAccess.remove(v.getKey());
-                        Block toRemove = v.getValue();
-                        if(toRemove.prevBlock[0] != null) {
-                            toRemove.prevBlock[0].nextBlock[0] = null;
-                        }
-                        if(toRemove.prevBlock[1] != null) {
-                            toRemove.prevBlock[1].nextBlock[1] = null;
-                        }
-                        if(toRemove.nextBlock[0] != null) {
-                            toRemove.nextBlock[0].prevBlock[0] = null;
-                        }
-                        if(toRemove.nextBlock[1] != null) {
-                            toRemove.nextBlock[1].prevBlock[1] = null;
-                        }
-                    });
+                    slot = cell.getRandom().nextInt(slotCt);
                     break;
                 default:
                     //Earliest first
-                    keyAccess.entrySet().stream().min(Comparator.comparingInt(a -> a.getValue().lastUsed)).ifPresent(v -> {
-                        keyAccess.remove(v.getKey());
-                        Block toRemove = v.getValue();
-                        if(toRemove.prevBlock[0] != null) {
-                            toRemove.prevBlock[0].nextBlock[0] = null;
-                        }
-                        if(toRemove.prevBlock[1] != null) {
-                            toRemove.prevBlock[1].nextBlock[1] = null;
-                        }
-                        if(toRemove.nextBlock[0] != null) {
-                            toRemove.nextBlock[0].prevBlock[0] = null;
-                        }
-                        if(toRemove.nextBlock[1] != null) {
-                            toRemove.nextBlock[1].prevBlock[1] = null;
-                        }
-                    });
-                    break;            
+                    slot = oldest;
+                    break;
             }
+            //The new block takes over the slot.
+            keyAccess.remove(LongIntMap.pack(blockX[slot], blockY[slot]));
+            unlinkOrder(slot);
         }
-        Vec2i temp = new Vec2i(x - 1, y);
-        Block prevX = keyAccess.get(temp);
-        temp.set(x, y - 1);
-        Block prevY = keyAccess.get(temp);
-        
-        Block block = new Block(x, y, CHUNK_SIZE, cycle, new Block[]{prevX, prevY});
-        keyAccess.put(new Vec2i(x, y), block);
-        return block;
+        initBlock(slot, x, y, cycle);
+        return slot;
     }
 
-    private static class Block {
-
-        private double[][] memFood;
-        private boolean[][] memCell;
-        private int x, y;
-        //2-pair
-        //0 - X+
-        //1 - Y+
-        private Block[] prevBlock;
-        //2-pair
-        //0 - X-
-        //1 - Y-
-        private Block[] nextBlock;
-        private int lastUsed;
-        
-        private Block(int blockX, int blockY, int chunkSize, int cycle) {
-            this(blockX, blockY, chunkSize, cycle, null);
-        }
+    /**
+     * Puts a block with nothing known about its tiles in the slot.
+     */
+    private void initBlock(int slot, int x, int y, int cycle) {
+        Arrays.fill(food, slot * TILES, (slot + 1) * TILES, UNKNOWN_FOOD);
+        cells[slot] = 0;
+        blockX[slot] = x;
+        blockY[slot] = y;
+        lastUsed[slot] = cycle;
+        keyAccess.put(LongIntMap.pack(x, y), slot);
+        linkOrder(slot);
+    }
 
-        private Block(int blockX, int blockY, int chunkSize, int cycle, Block[] prev) {
-            this.memFood = new double[chunkSize][chunkSize];
-            this.memCell = new boolean[chunkSize][chunkSize];
-            for(int i = 0; i < chunkSize; i++) {
-                for(int j = 0; j < chunkSize; j++) {
-                    memFood[i][j] = -1;
-                    memCell[i][j] = false;
-                }
-            }
-            this.x = blockX;
-            this.y = blockY;
-            if(prev == null) {
-                this.prevBlock = new Block[2];
-            } else {
-                if(prev[0] != null) {
-                    //0 - X-
-                    prev[0].nextBlock[0] = this;
-                }
-                if(prev[1] != null) {
-                    //1 - Y-
-                    prev[1].nextBlock[1] = this;
-                }
-                this.prevBlock = prev.clone();                
-            }
-            this.lastUsed = cycle;
+    private void resize(int slots) {
+        if(cells == null) {
+            food = new char[slots * TILES];
+            cells = new short[slots];
+            blockX = new int[slots];
+            blockY = new int[slots];
+            lastUsed = new int[slots];
+            older = new int[slots];
+            newer = new int[slots];
+        } else {
+            food = Arrays.copyOf(food, slots * TILES);
+            cells = Arrays.copyOf(cells, slots);
+            blockX = Arrays.copyOf(blockX, slots);
+            blockY = Arrays.copyOf(blockY, slots);
+            lastUsed = Arrays.copyOf(lastUsed, slots);
+            older = Arrays.copyOf(older, slots);
+            newer = Arrays.copyOf(newer, slots);
         }
+    }
 
-        /**
-         * Updates all the tiles in the block with the specified offsets. All
-         * parameters should have the same number of elements. The n'th element
-         * in each array corresponds with each other.
-         * @param x offset x's
-         * @param y offset y's
-         * @param food food values
-         * @param hasCell cell values
-         */
-        void update(int[] x, int[] y, double[] food, boolean[] hasCell, int cycle) {
-            for(int i = 0; i < x.length; i++) {
-                memFood[y[i]][x[i]] = food[i]; 
-                memCell[y[i]][x[i]] = hasCell[i];
-            }
-            this.lastUsed = cycle;
-        }
+    private double foodAt(int slot, int tileIndex) {
+        char value = food[slot * TILES + tileIndex];
+        return value == UNKNOWN_FOOD ? -1 : value / FOOD_SCALE;
+    }
 
-        /**
-         * Updates the specified tile's data.
-         * @param x offset x
-         * @param y offset y
-         */
-        void update(int x, int y, double food, boolean hasCell, int cycle) {
-            memFood[y][x] = food;
-            memCell[y][x] = hasCell;
-            this.lastUsed = cycle;
-        }
+    private boolean cellAt(int slot, int tileIndex) {
+        return (cells[slot] & 1 << tileIndex) != 0;
+    }
 
-        /**
-         * Gets the data at the offset
-         * @return index 0 - double, food.
-         *         index 1 - boolean, hasCell
-         */
-        Object[] get(int x, int y, int cycle) {
-            lastUsed = cycle;
-            return new Object[] {memFood[y][x], memCell[y][x]};
-        }
+    private static char quantize(double value) {
+        return (char) Math.min(MAX_FOOD, Math.round(Math.max(0, value) * FOOD_SCALE));
+    }
 
-        double getF(int x, int y, int cycle) {
-            lastUsed = cycle;
-            return memFood[y][x];
+    /**
+     * Marks the block as used in the cycle and moves it in the eviction order.
+     */
+    private void touch(int slot, int cycle) {
+        if(lastUsed[slot] == cycle && slot == newest) {
+            return;
         }
+        unlinkOrder(slot);
+        lastUsed[slot] = cycle;
+        linkOrder(slot);
+    }
 
-        boolean getC(int x, int y, int cycle) {
-            lastUsed = cycle;
-            return memCell[y][x];
+    /**
+     * Inserts the slot after the last slot with a lastUsed no later than its
+     * own. Cycles only go up, so this is the newest end.
+     */
+    private void linkOrder(int slot) {
+        int before = newest;
+        while(before != NONE && lastUsed[before] > lastUsed[slot]) {
+            before = older[before];
         }
+        older[slot] = before;
+        if(before == NONE) {
+            newer[slot] = oldest;
+            oldest = slot;
+        } else {
+            newer[slot] = newer[before];
+            newer[before] = slot;
+        }
+        if(newer[slot] == NONE) {
+            newest = slot;
+        } else {
+            older[newer[slot]] = slot;
+        }
+    }
 
+    private void unlinkOrder(int slot) {
+        if(older[slot] == NONE) {
+            oldest = newer[slot];
+        } else {
+            newer[older[slot]] = newer[slot];
+        }
+        if(newer[slot] == NONE) {
+            newest = older[slot];
+        } else {
+            older[newer[slot]] = older[slot];
+        }
+        older[slot] = NONE;
+        newer[slot] = NONE;
     }
 
-}
\ No newline at end of file
+}
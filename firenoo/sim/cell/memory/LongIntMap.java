@@ -0,0 +1,138 @@
+package firenoo.sim.cell.memory;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to non-negative ints, with open addressing and
+ * linear probing. Keys and values are stored unboxed in two arrays, so
+ * lookups do not allocate; an empty slot holds the value {@link #MISSING}.
+ * Removal shifts later entries of the probe run back instead of leaving
+ * tombstones.
+ * Not thread-safe.
+ */
+class LongIntMap {
+
+    static final int MISSING = -1;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expected number of entries to make room for without growing
+     */
+    LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) (Math.max(expected, 1) / LOAD_FACTOR)) * 2 - 1);
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return a long holding both coordinates, x in the upper half.
+     */
+    static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    static int unpackX(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int unpackY(long key) {
+        return (int) key;
+    }
+
+    boolean containsKey(long key) {
+        return values[find(key)] != MISSING;
+    }
+
+    /**
+     * @return the value of the key, or MISSING
+     */
+    int get(long key) {
+        return values[find(key)];
+    }
+
+    /**
+     * @return the value that was replaced, or MISSING
+     */
+    int put(long key, int value) {
+        if(value < 0) {
+            throw new IllegalArgumentException("Values must not be negative!");
+        }
+        int slot = find(key);
+        int old = values[slot];
+        if(old == MISSING) {
+            if(size + 1 > keys.length * LOAD_FACTOR) {
+                grow();
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        return old;
+    }
+
+    /**
+     * @return the value that was removed, or MISSING
+     */
+    int remove(long key) {
+        int slot = find(key);
+        int old = values[slot];
+        if(old == MISSING) {
+            return MISSING;
+        }
+        //Shift back later entries of the run whose home slot is not between
+        //the gap and their slot.
+        int gap = slot;
+        for(int i = (gap + 1) & mask; values[i] != MISSING; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if(((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = MISSING;
+        size--;
+        return old;
+    }
+
+    /**
+     * @return the slot of the key, or the empty slot where it would go.
+     */
+    private int find(long key) {
+        int i = hash(key) & mask;
+        while(values[i] != MISSING && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, MISSING);
+        mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldValues[i] != MISSING) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
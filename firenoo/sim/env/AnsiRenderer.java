@@ -0,0 +1,104 @@
+package firenoo.sim.env;
+
+import java.io.PrintStream;
+
+/**
+ * Draws the grid on an ANSI terminal, one character per tile, like
+ * {@link Environment#toString()}. The first frame draws every tile. After
+ * that, only tiles the grid marked as changed are looked at, and only those
+ * whose character differs from what is on screen are redrawn, with a cursor
+ * jump to each one. The cost of a frame thus depends on how much changed, not
+ * on the size of the grid.
+ * Changes are tracked from the moment the renderer is created until it is
+ * closed.
+ */
+public class AnsiRenderer {
+
+    private static final String ESC = "\u001b[";
+
+    private final GridStore grid;
+    private final ChangeSet changes;
+    private final PrintStream out;
+    private final StringBuilder frame = new StringBuilder();
+
+    //What is on screen right now.
+    private final char[] front;
+    private boolean drawn;
+
+    public AnsiRenderer(GridStore grid, PrintStream out) {
+        this.grid = grid;
+        this.changes = grid.trackChanges();
+        this.out = out;
+        this.front = new char[grid.size()];
+    }
+
+    /**
+     * Draws the changes since the last frame.
+     * @return the number of tiles redrawn
+     */
+    public int render() {
+        frame.setLength(0);
+        int redrawn = drawn ? renderDiff() : renderFull();
+        //Park the cursor below the grid.
+        moveTo(grid.height(), 0);
+        out.print(frame);
+        out.flush();
+        changes.clear();
+        return redrawn;
+    }
+
+    /**
+     * Stops tracking changes of the grid. The renderer must not be used
+     * afterwards.
+     */
+    public void close() {
+        grid.untrackChanges(changes);
+    }
+
+    /**
+     * Draws every tile again on the next frame, e.g. after the terminal was
+     * cleared by something else.
+     */
+    public void invalidate() {
+        drawn = false;
+    }
+
+    private int renderFull() {
+        frame.append(ESC).append("2J");
+        moveTo(0, 0);
+        for(int i = 0, index = 0; i < grid.height(); i++) {
+            for(int j = 0; j < grid.width(); j++, index++) {
+                front[index] = grid.glyph(index);
+                frame.append(front[index]);
+            }
+            frame.append('\n');
+        }
+        drawn = true;
+        return front.length;
+    }
+
+    private int renderDiff() {
+        int redrawn = 0;
+        //Index right after the last character written; no jump needed there.
+        int cursor = -1;
+        for(int index = changes.next(0); index >= 0; index = changes.next(index + 1)) {
+            char glyph = grid.glyph(index);
+            if(front[index] == glyph) {
+                continue;
+            }
+            int x = grid.xOf(index);
+            if(index != cursor || x == 0) {
+                moveTo(grid.yOf(index), x);
+            }
+            frame.append(glyph);
+            front[index] = glyph;
+            cursor = index + 1;
+            redrawn++;
+        }
+        return redrawn;
+    }
+
+    private void moveTo(int row, int col) {
+        frame.append(ESC).append(row + 1).append(';').append(col + 1).append('H');
+    }
+}
@@ -0,0 +1,104 @@
+package firenoo.sim.env;
+
+/**
+ * A set of indices in [0, size), stored as a bitset with a summary level on
+ * top. Bit w of the summary is set iff word w of the bitset is not empty, so
+ * {@link #nextSetBit(int)} skips 4096 empty indices per summary word it reads.
+ * Iterating a sparse set thus costs about the number of set bits, not the size.
+ * Not thread-safe for writes; any number of threads may read while nobody
+ * writes.
+ */
+public class BitIndex {
+
+    private final int size;
+    private final long[] words;
+    private final long[] summary;
+    private int count;
+
+    public BitIndex(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+        this.summary = new long[(words.length + 63) >>> 6];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The number of set bits.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return word w of the bitset, bits w * 64 to w * 64 + 63.
+     */
+    long word(int w) {
+        return words[w];
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void set(int index) {
+        int w = index >>> 6;
+        long word = words[w];
+        long bit = 1L << index;
+        if((word & bit) == 0) {
+            if(word == 0) {
+                summary[w >>> 6] |= 1L << w;
+            }
+            words[w] = word | bit;
+            count++;
+        }
+    }
+
+    public void clear(int index) {
+        int w = index >>> 6;
+        long word = words[w];
+        long bit = 1L << index;
+        if((word & bit) != 0) {
+            word &= ~bit;
+            words[w] = word;
+            if(word == 0) {
+                summary[w >>> 6] &= ~(1L << w);
+            }
+            count--;
+        }
+    }
+
+    /**
+     * @return the first set index at or after from, or -1 if there is none.
+     */
+    public int nextSetBit(int from) {
+        if(from < 0) {
+            from = 0;
+        }
+        if(from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        if(word != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        //Find the next non-empty word through the summary.
+        w++;
+        int s = w >>> 6;
+        if(s >= summary.length) {
+            return -1;
+        }
+        long sum = summary[s] & (-1L << w);
+        while(sum == 0) {
+            if(++s == summary.length) {
+                return -1;
+            }
+            sum = summary[s];
+        }
+        w = (s << 6) + Long.numberOfTrailingZeros(sum);
+        return (w << 6) + Long.numberOfTrailingZeros(words[w]);
+    }
+}
@@ -2,146 +2,477 @@ package firenoo.sim.env;
 
 import firenoo.sim.cell.ICell;
 
-import firenoo.lib.structs.DirectedWeightedGraph;
-import firenoo.lib.structs.MinPriorityQueue;
-import firenoo.lib.structs.Vec2i;
-
-import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
 
+/**
+ * Collects move requests during the move phase and applies them at the end of
+ * the cycle. Requests are packed into primitive arrays keyed by tile index
+ * (x + y * width).
+ * Resolution rules:
+ * <ul>
+ *  <li>Requests are considered from the highest priority to the lowest. Requests
+ *      of the same priority are considered in the order they were queued.</li>
+ *  <li>A request is accepted iff its source still holds a cell that has not
+ *      moved yet, and its target is a non-block tile that no other request
+ *      has claimed.</li>
+ *  <li>The target must also be empty, or its cell must move out in the same
+ *      cycle. A request on a tile whose cell has not moved yet waits; once a
+ *      request of that cell is accepted, the waiting requests on the tile are
+ *      considered again in the order they came. Chains of moves thus resolve
+ *      as if the front of the chain went first. Cycles of moves, including two
+ *      cells swapping tiles, never resolve and are all rejected.</li>
+ * </ul>
+ * Every target tile thus ends up with indegree 0 or 1, and every cell moves at
+ * most once per cycle. Resolution runs in time linear in the number of requests.
+ * <p>
+ * Intake is sharded by the row band of the source tile. Each shard is a plain
+ * append-only buffer without locks, so different bands may queue requests from
+ * different threads at the same time, as the stripes of a {@link TickEngine}
+ * do. Only one thread may write to a band at a time. Queue order is band order,
+ * then the order within the band, which is the same as queueing every request
+ * from one thread in row-major order.
+ * <p>
+ * With more than one band, resolution also runs per band. Whether a request is
+ * accepted only depends on earlier requests that share its source or target,
+ * and so on; in other words, on its connected component when requests are seen
+ * as edges between tiles. Components that stay inside one band are resolved by
+ * that band's thread. Components that contain a request crossing into another
+ * band are resolved afterwards on one thread, in queue order. The result is the
+ * same as resolving everything on one thread.
+ */
 public class CellMoveHandler {
 
+    public static final int MAX_EDGE_WEIGHT = 4;
+
+    //Union-find entries: stamp in the high word, parent index in the low word.
+    private static final long INDEX_MASK = 0x7FFFFFFFL;
+    //Set on the root of a component that crosses a band boundary.
+    private static final long BOUNDARY = 0x80000000L;
 
     private boolean isIdle;
 
-    private DirectedWeightedGraph<Vec2i> process;
-    private CellMoveGraph graph;
+    private final int width, height;
 
-    public static final int MAX_EDGE_WEIGHT = 4;
+    private final TickEngine engine;
 
-    public CellMoveHandler() {
-        this.process = new DirectedWeightedGraph<>();
+    //Shard of every row, and the shards themselves in band order.
+    private final int[] shardOfRow;
+    private final Shard[] shards;
+
+    //Resolution scratch. Tile arrays are stamped instead of cleared.
+    private int[] moved;
+    private int[] claimed;
+    private long[] uf;
+    private int stamp;
+    //Requests waiting for the cell on a tile to move out, as lists of request
+    //ids: the id of a request is the base of its shard plus its index there.
+    private int[] waitStamp;
+    private int[] waitHead, waitTail;
+    private int[] nextWait = new int[16];
+    //Cells lifted off their source, by request id, while moves are applied.
+    private ICell[] lifted = new ICell[16];
+
+    /**
+     * Creates a handler with a single shard. Requests must be queued from one
+     * thread at a time, and resolution runs on the calling thread.
+     */
+    public CellMoveHandler(int width, int height) {
+        this(width, height, null, 1, row -> 0);
+    }
+
+    /**
+     * Creates a handler with one shard per stripe of the engine. Resolution
+     * runs on the engine as well.
+     */
+    public CellMoveHandler(int width, int height, TickEngine engine) {
+        this(width, height, engine, engine.stripeCount(), stripe -> engine.stripeStart(stripe));
+    }
+
+    /**
+     * @param shardCt    number of row bands
+     * @param bandStart  first row of each band; bandStart(0) must be 0
+     */
+    private CellMoveHandler(int width, int height, TickEngine engine, int shardCt, IntUnaryOperator bandStart) {
+        this.width = width;
+        this.height = height;
+        this.engine = engine;
+        this.shardOfRow = new int[height];
+        this.shards = new Shard[shardCt];
+        for(int i = 0; i < shardCt; i++) {
+            shards[i] = new Shard();
+            int end = i + 1 < shardCt ? bandStart.applyAsInt(i + 1) : height;
+            for(int row = bandStart.applyAsInt(i); row < end; row++) {
+                shardOfRow[row] = i;
+            }
+        }
+        this.isIdle = true;
     }
 
+    /**
+     * Queues a move request. The target must be adjacent to the source and
+     * inside the grid, and the priority must be in [1, MAX_EDGE_WEIGHT].
+     * The request goes to the shard of the source row; see the class notes
+     * for which threads may call this.
+     */
     public void queueEvent(CellMove action) {
-        if(IEnvironment.taxicabDist(action.getPosX(), action.getPosY(), action.getTargetPosX(), action.getTargetPosY()) == 1) {
-            // System.out.printf("Adding action %d, %d -> %d, %d, %d%n", action.getPosX(), action.getPosY(), action.getTargetPosX(), action.getTargetPosY(), action.getPriority());
-            
-            process.addEdge(new Vec2i(action.getPosX(), action.getPosY()), new Vec2i(action.getTargetPosX(), action.getTargetPosY()), action.getPriority(), true);
-        } else throw new IllegalArgumentException("Move positions are invalid - not adjacent!");
+        check(action);
+        // System.out.printf("Adding action %d, %d -> %d, %d, %d%n", action.getPosX(), action.getPosY(), action.getTargetPosX(), action.getTargetPosY(), action.getPriority());
+        shards[shardOfRow[action.getPosY()]].add(
+            action.getPosX() + action.getPosY() * width,
+            action.getTargetPosX() + action.getTargetPosY() * width,
+            action.getPriority());
+    }
+
+    /**
+     * @return the number of requests queued since the last resolution. Only
+     *         exact while no thread is queueing.
+     */
+    public int size() {
+        int size = 0;
+        for(Shard shard : shards) {
+            size += shard.count;
+        }
+        return size;
     }
 
     public boolean queryProcessingState() {
         return isIdle;
     }
 
-    public void resolveAll(ITile[][] tile) {
+    /**
+     * Resolves all queued requests and moves the cells on the grid. The queue
+     * is empty afterwards.
+     */
+    public void resolveAll(GridStore grid) {
         this.isIdle = false;
-        graph = new CellMoveGraph(process);
-        graph.resolve();
-        System.out.println(graph);
-
-        DirectedWeightedGraph<Vec2i> moveResults = graph.getResult().deepCopy().reverseEdges();
-        DirectedWeightedGraph<Vec2i>.NodeTraverser traverser = moveResults.bfs();
-        Vec2i prevPos = traverser.nextTarget();
-        while(traverser.hasNext()) {
-            Vec2i pos = traverser.nextTarget();
-            ICell cell = tile[pos.y][pos.x].getCell();
-            tile[prevPos.y][prevPos.x].putCell(cell);
-            tile[pos.y][pos.x].putCell(null);
-            prevPos = pos;
-        }
-        this.process = new DirectedWeightedGraph<>();
+        prepare(grid.size());
+        if(shards.length == 1) {
+            Shard shard = shards[0];
+            shard.sort();
+            for(int k = 0; k < shard.count; k++) {
+                tryAccept(grid, shard, shard.order[k]);
+            }
+        } else {
+            resolveBands(grid);
+        }
+        //Lift every moving cell first; a chain may span several shards.
+        for(Shard shard : shards) {
+            for(int k = 0; k < shard.acceptedCt; k++) {
+                int r = shard.accepted[k];
+                lifted[shard.base + r] = grid.putCell(shard.srcs[r], null);
+            }
+        }
+        for(Shard shard : shards) {
+            for(int k = 0; k < shard.acceptedCt; k++) {
+                int r = shard.accepted[k];
+                grid.putCell(shard.dsts[r], lifted[shard.base + r]);
+                lifted[shard.base + r] = null;
+            }
+            shard.clear();
+        }
         this.isIdle = true;
     }
-   
+
+    private void resolveBands(GridStore grid) {
+        //1. Every band sorts its requests and links the tiles of requests
+        //   that stay inside the band.
+        engine.forEachStripe((band, fromRow, toRow) -> {
+            Shard shard = shards[band];
+            shard.sort();
+            for(int r = 0; r < shard.count; r++) {
+                if(isInside(shard, band, r)) {
+                    union(shard.srcs[r], shard.dsts[r]);
+                }
+            }
+        });
+        //2. Link requests that cross bands, then mark their components.
+        for(int band = 0; band < shards.length; band++) {
+            Shard shard = shards[band];
+            for(int r = 0; r < shard.count; r++) {
+                if(!isInside(shard, band, r)) {
+                    union(shard.srcs[r], shard.dsts[r]);
+                }
+            }
+        }
+        for(int band = 0; band < shards.length; band++) {
+            Shard shard = shards[band];
+            for(int r = 0; r < shard.count; r++) {
+                if(!isInside(shard, band, r)) {
+                    int root = find(shard.srcs[r]);
+                    uf[root] = ((long) stamp << 32) | root | BOUNDARY;
+                }
+            }
+        }
+        //3. Every band resolves its own components and defers the rest, still
+        //   in sorted order. find() does not write here, so bands can share roots.
+        engine.forEachStripe((band, fromRow, toRow) -> {
+            Shard shard = shards[band];
+            for(int k = 0; k < shard.count; k++) {
+                int r = shard.order[k];
+                if(isBoundary(find(shard.srcs[r]))) {
+                    shard.deferred[shard.deferredCt++] = r;
+                } else {
+                    tryAccept(grid, shard, r);
+                }
+            }
+        });
+        //4. Deferred requests in queue order: by priority, then band, then
+        //   the order within the band.
+        for(Shard shard : shards) {
+            shard.cursor = 0;
+        }
+        for(int p = MAX_EDGE_WEIGHT; p > 0; p--) {
+            for(Shard shard : shards) {
+                while(shard.cursor < shard.deferredCt && shard.priorities[shard.deferred[shard.cursor]] == p) {
+                    tryAccept(grid, shard, shard.deferred[shard.cursor++]);
+                }
+            }
+        }
+    }
+
+    private boolean tryAccept(GridStore grid, Shard shard, int r) {
+        int src = shard.srcs[r];
+        int dst = shard.dsts[r];
+        if(moved[src] == stamp || claimed[dst] == stamp) {
+            return false;
+        }
+        if(!grid.hasCell(src) || grid.isBlock(dst)) {
+            return false;
+        }
+        if(grid.hasCell(dst) && moved[dst] != stamp) {
+            await(dst, shard.base + r);
+            return false;
+        }
+        accept(shard, r);
+        //The source is free now; hand it to the first request still waiting
+        //for it, and so on down the chain.
+        int tile = src;
+        while(tile >= 0) {
+            int next = -1;
+            for(int id = popWait(tile); id >= 0; id = popWait(tile)) {
+                Shard waiter = shardOf(id);
+                int w = id - waiter.base;
+                if(moved[waiter.srcs[w]] != stamp && grid.hasCell(waiter.srcs[w])) {
+                    accept(waiter, w);
+                    next = waiter.srcs[w];
+                    break;
+                }
+            }
+            tile = next;
+        }
+        return true;
+    }
+
+    private void accept(Shard shard, int r) {
+        moved[shard.srcs[r]] = stamp;
+        claimed[shard.dsts[r]] = stamp;
+        shard.accepted[shard.acceptedCt++] = r;
+    }
+
     /**
-     * This class provides the methods for resolving cell moves. It does not figure
-     * out cell splits, which has an additional constraint.
-     * It finds an answer the question:
-     * Given any directed weighted graph with at least one edge incident on two unique
-     * vertices, is there a way to remove the edges such that only vertices of indegree
-     * 0 or 1 remain?
+     * Appends the request to the requests waiting for the cell on the tile to
+     * move out.
      */
-    public static class CellMoveGraph extends DirectedWeightedGraph<Vec2i> {
-        
-        //Mark offset - weight (Nodes, Source)
-        public static final int WEIGHT_OFS = 4;
-        public static final int WEIGHT_SIZE = 2;
+    private void await(int tile, int id) {
+        nextWait[id] = -1;
+        if(waitStamp[tile] != stamp) {
+            waitStamp[tile] = stamp;
+            waitHead[tile] = id;
+        } else {
+            nextWait[waitTail[tile]] = id;
+        }
+        waitTail[tile] = id;
+    }
 
-        //Mark offset - effective weight (Edges, Source)
-        public static final int EFWMIN_OFS = 6;
-        public static final int EFWMIN_SIZE = 1;
+    /**
+     * @return the first request waiting on the tile, or -1 if there is none.
+     *         The request is removed from the list.
+     */
+    private int popWait(int tile) {
+        if(waitStamp[tile] != stamp) {
+            return -1;
+        }
+        int id = waitHead[tile];
+        if(id == waitTail[tile]) {
+            waitStamp[tile] = 0;
+        } else {
+            waitHead[tile] = nextWait[id];
+        }
+        return id;
+    }
 
-        //Mark offset - In result (Edges, Source)
-        public static final int INRESULT_OFS = 7;
-        public static final int INRESULT_SIZE = 1;
+    private Shard shardOf(int id) {
+        int i = shards.length - 1;
+        while(shards[i].base > id) {
+            i--;
+        }
+        return shards[i];
+    }
 
+    private boolean isInside(Shard shard, int band, int r) {
+        return shardOfRow[shard.dsts[r] / width] == band;
+    }
+
+    private void prepare(int size) {
+        if(moved == null || moved.length < size) {
+            moved = new int[size];
+            claimed = new int[size];
+            uf = shards.length > 1 ? new long[size] : null;
+            waitStamp = new int[size];
+            waitHead = new int[size];
+            waitTail = new int[size];
+            stamp = 0;
+        }
+        if(++stamp == 0) {
+            //Wrapped around; old stamps could collide.
+            Arrays.fill(moved, 0);
+            Arrays.fill(claimed, 0);
+            Arrays.fill(waitStamp, 0);
+            if(uf != null) {
+                Arrays.fill(uf, 0);
+            }
+            stamp = 1;
+        }
+        int total = 0;
+        for(Shard shard : shards) {
+            shard.base = total;
+            total += shard.count;
+        }
+        if(nextWait.length < total) {
+            nextWait = new int[total];
+            lifted = new ICell[total];
+        }
+    }
 
-        
-        //THis will be null
-        private DirectedWeightedGraph<Vec2i> lastResult;
-        
-        private boolean isFinished = false;
+    /**
+     * Finds the root of the tile's component without writing anything. Tiles
+     * that were not linked this cycle are their own root.
+     */
+    private int find(int t) {
+        while(true) {
+            long e = uf[t];
+            if((int) (e >>> 32) != stamp) {
+                return t;
+            }
+            int p = (int) (e & INDEX_MASK);
+            if(p == t) {
+                return t;
+            }
+            t = p;
+        }
+    }
 
-        public CellMoveGraph(DirectedWeightedGraph<Vec2i> graph) {
-            this.vertices.putAll(graph.getVMap());
+    /**
+     * Links the components of both tiles. Uses path halving, so both tiles must
+     * belong to the calling thread's band, or no other thread may be linking.
+     */
+    private void union(int a, int b) {
+        int ra = findHalving(a);
+        int rb = findHalving(b);
+        if(ra != rb) {
+            uf[ra] = ((long) stamp << 32) | rb;
+        }
+    }
+
+    private int findHalving(int t) {
+        while(true) {
+            long e = uf[t];
+            if((int) (e >>> 32) != stamp) {
+                return t;
+            }
+            int p = (int) (e & INDEX_MASK);
+            if(p == t) {
+                return t;
+            }
+            long ep = uf[p];
+            if((int) (ep >>> 32) != stamp || (int) (ep & INDEX_MASK) == p) {
+                return p;
+            }
+            uf[t] = ep;
+            t = (int) (ep & INDEX_MASK);
+        }
+    }
+
+    private boolean isBoundary(int root) {
+        long e = uf[root];
+        return (int) (e >>> 32) == stamp && (e & BOUNDARY) != 0;
+    }
+
+    private void check(CellMove action) {
+        if(IEnvironment.taxicabDist(action.getPosX(), action.getPosY(), action.getTargetPosX(), action.getTargetPosY()) != 1) {
+            throw new IllegalArgumentException("Move positions are invalid - not adjacent!");
+        }
+        if(action.getPosX() < 0 || action.getPosY() < 0 || action.getPosX() >= width || action.getPosY() >= height
+            || action.getTargetPosX() < 0 || action.getTargetPosY() < 0 || action.getTargetPosX() >= width || action.getTargetPosY() >= height) {
+            throw new IllegalArgumentException("Move positions are invalid - out of bounds!");
+        }
+        if(action.getPriority() < 1 || action.getPriority() > MAX_EDGE_WEIGHT) {
+            throw new IllegalArgumentException("Move priority must be in [1, " + MAX_EDGE_WEIGHT + "]!");
+        }
+    }
+
+    /**
+     * Request buffer of one row band, plus its resolution scratch. Written by
+     * one thread at a time; the fork-join barrier publishes it to the next.
+     */
+    private static class Shard {
+
+        private int[] srcs = new int[16];
+        private int[] dsts = new int[16];
+        private int[] priorities = new int[16];
+        private int count;
+
+        //Request ids, highest priority first; stable.
+        private int[] order = new int[16];
+        private final int[] starts = new int[MAX_EDGE_WEIGHT + 2];
+        private int[] accepted = new int[16];
+        private int acceptedCt;
+        private int[] deferred = new int[16];
+        private int deferredCt;
+        private int cursor;
+        //Id of the first request of the shard during resolution.
+        private int base;
+
+        private void add(int src, int dst, int priority) {
+            if(count == srcs.length) {
+                srcs = Arrays.copyOf(srcs, count * 2);
+                dsts = Arrays.copyOf(dsts, count * 2);
+                priorities = Arrays.copyOf(priorities, count * 2);
+            }
+            srcs[count] = src;
+            dsts[count] = dst;
+            priorities[count] = priority;
+            count++;
         }
 
-        // Comments are not meant for other people but for myself haha - see you in 6 months
-        // (6/9/2020)
-        // I already forgot what most of this does
-        // (8/18/2020)
         /**
-         * Resolves the graph to acceptable format.
+         * Counting sort of the request ids into {@code order}. Also makes room
+         * for the accepted and deferred lists.
          */
-        public void resolve() {
-            isFinished = false;
-            DirectedWeightedGraph<Vec2i> result = new DirectedWeightedGraph<>();
-            MinPriorityQueue<GraphNode> process = new MinPriorityQueue<>(size());
-            vertices.forEach((vert, node) -> {
-                result.addVertex(vert);
-                if(node.edges().elementCt() > 0) {
-                    process.enqueue(node, node.edges().elementCt());
-                }
-            });
-            GraphNode node;
-            while(!process.isEmpty()) {
-                node = process.dequeue();
-                GraphEdge toAdd;
-                //Start with the highest weight
-                AtomicInteger nextWeight = new AtomicInteger(MAX_EDGE_WEIGHT);
-                do {
-                    //Find next lowest weight
-                    try {
-                        toAdd = node.edges()
-                                    .stream()
-                                    .filter(edge -> edge.weight() == nextWeight.get())
-                                    .findAny()
-                                    .get();
-                    } catch(NoSuchElementException e) {
-                        //Give up if no edge can be found
-                        break;
-                    }
-                    //Add the next edge
-                    if(result.getVMap().get(toAdd.getTarget().getObject()).indegree() == 0) {
-                        toAdd = result.addEdge(node.getObject(), toAdd.getTarget().getObject(), toAdd.weight(), true);
-                    }
-                    nextWeight.decrementAndGet();
-                } while(toAdd.getTarget().indegree() != 0);
-            }
-            lastResult = result;
-            isFinished = true;
-        }
-
-
-        public DirectedWeightedGraph<Vec2i> getResult() {
-            return lastResult;
-        }
-
-        public boolean isResultFinished() {
-            return isFinished;
-        }
-    }
-    
-}
\ No newline at end of file
+        private void sort() {
+            if(order.length < count) {
+                order = new int[srcs.length];
+                accepted = new int[srcs.length];
+                deferred = new int[srcs.length];
+            }
+            Arrays.fill(starts, 0);
+            for(int r = 0; r < count; r++) {
+                starts[MAX_EDGE_WEIGHT - priorities[r] + 1]++;
+            }
+            for(int p = 1; p < starts.length; p++) {
+                starts[p] += starts[p - 1];
+            }
+            for(int r = 0; r < count; r++) {
+                order[starts[MAX_EDGE_WEIGHT - priorities[r]]++] = r;
+            }
+        }
+
+        private void clear() {
+            count = 0;
+            acceptedCt = 0;
+            deferredCt = 0;
+        }
+    }
+
+}
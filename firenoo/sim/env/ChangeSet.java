@@ -0,0 +1,61 @@
+package firenoo.sim.env;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The tiles of a grid that changed since the owner last cleared the set. Every
+ * reader of changes gets its own set from {@link GridStore#trackChanges()}, so
+ * readers clear them independently.
+ * Marking is safe from any thread; iterating and clearing are not meant to
+ * run while tiles are being changed.
+ */
+public class ChangeSet {
+
+    private final int size;
+    //Atomic because food of neighbouring tiles may change on different threads.
+    private final AtomicLongArray bits;
+
+    ChangeSet(int size) {
+        this.size = size;
+        this.bits = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    void mark(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        if((bits.get(word) & bit) == 0) {
+            bits.getAndAccumulate(word, bit, (a, b) -> a | b);
+        }
+    }
+
+    public boolean contains(int index) {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * @return the first changed tile at or after from, or -1 if there is none.
+     */
+    public int next(int from) {
+        if(from >= size) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long w = bits.get(word) & (-1L << from);
+        while(true) {
+            if(w != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(w);
+                return index < size ? index : -1;
+            }
+            if(++word == bits.length()) {
+                return -1;
+            }
+            w = bits.get(word);
+        }
+    }
+
+    public void clear() {
+        for(int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0);
+        }
+    }
+}
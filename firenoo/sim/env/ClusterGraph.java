@@ -0,0 +1,457 @@
+package firenoo.sim.env;
+
+import java.util.Arrays;
+
+/**
+ * A coarse graph over the grid for long searches (HPA*). The grid is cut into
+ * square clusters. Wherever two neighbouring clusters share a stretch of open
+ * border, an entrance is placed on it: one pair of tiles in the middle of a
+ * short stretch, or one at each end of a long one. The entrance tiles are the
+ * nodes of the graph. Two nodes are linked if they form an entrance, or if they
+ * are in the same cluster and one can walk to the other inside it; the cost is
+ * the number of steps.
+ * <p>
+ * {@link #firstWaypoint(int, int)} searches this graph instead of the grid and
+ * returns the first node on the way, which is always close to the start. The
+ * caller then finds the actual steps to that node with a small local search.
+ * <p>
+ * Costs on the graph only count steps, which is what a search with cell cost 1
+ * counts. Cells thus never change the graph; they are dealt with by the local
+ * search. The graph is rebuilt when the block layout changes, between eating
+ * and moving, and only once some cell has asked for a waypoint.
+ * Building is not thread-safe; searches are, while no build runs.
+ */
+public class ClusterGraph {
+
+    public static final int DEFAULT_CLUSTER_SIZE = 8;
+
+    /**
+     * Returned by {@link #firstWaypoint(int, int)} while the graph is not built.
+     */
+    public static final int NOT_BUILT = -2;
+
+    //Stretches of open border at least this long get an entrance at each end.
+    private static final int LONG_RUN = 6;
+
+    private final GridStore grid;
+    private final int size;
+    private final int clustersX, clustersY;
+
+    private volatile boolean wanted;
+    private boolean built;
+    private int blockEpoch;
+
+    //Nodes, and the node of every entrance tile or -1.
+    private int nodeCt;
+    private int[] nodeTile = new int[64];
+    private final int[] nodeOfTile;
+    //Nodes by cluster: clusterNodes[clusterStart[k] .. clusterStart[k + 1]).
+    private final int[] clusterStart;
+    private int[] clusterNodes = new int[0];
+    //Edges by node: edgeTo[edgeStart[n] .. edgeStart[n + 1]).
+    private int[] edgeStart = new int[1];
+    private int[] edgeTo = new int[0];
+    private int[] edgeCost = new int[0];
+
+    //Edges while building.
+    private int[] buildFrom = new int[64], buildTo = new int[64], buildCost = new int[64];
+    private int buildCt;
+    private final Search builder;
+
+    private final ThreadLocal<Search> searches;
+
+    public ClusterGraph(GridStore grid) {
+        this(grid, DEFAULT_CLUSTER_SIZE);
+    }
+
+    public ClusterGraph(GridStore grid, int size) {
+        if(size < 2) {
+            throw new IllegalArgumentException("Clusters must be at least 2 tiles wide!");
+        }
+        this.grid = grid;
+        this.size = size;
+        this.clustersX = (grid.width() + size - 1) / size;
+        this.clustersY = (grid.height() + size - 1) / size;
+        this.nodeOfTile = new int[grid.size()];
+        this.clusterStart = new int[clustersX * clustersY + 1];
+        this.builder = new Search();
+        this.searches = ThreadLocal.withInitial(Search::new);
+    }
+
+    /**
+     * The side length of a cluster.
+     */
+    public int clusterSize() {
+        return size;
+    }
+
+    /**
+     * The vision range a local search needs to reach any waypoint returned by
+     * {@link #firstWaypoint(int, int)} from the start.
+     */
+    public int localRange() {
+        return 2 * size;
+    }
+
+    /**
+     * Rebuilds the graph if a cell asked for it and the block layout changed.
+     */
+    public void update() {
+        if(!wanted || (built && grid.blockEpoch() == blockEpoch)) {
+            return;
+        }
+        blockEpoch = grid.blockEpoch();
+        build();
+        built = true;
+    }
+
+    /**
+     * Searches the graph for a way from the start tile to the goal tile.
+     * @return the first tile to head for: the goal itself if it is in the
+     *         start's cluster, otherwise the first entrance on the way, other
+     *         than the start. -1 if there is no way, or NOT_BUILT.
+     */
+    public int firstWaypoint(int start, int goal) {
+        if(!built) {
+            wanted = true;
+            return NOT_BUILT;
+        }
+        if(grid.isBlock(start) || grid.isBlock(goal)) {
+            return -1;
+        }
+        if(clusterOf(start) == clusterOf(goal)) {
+            return goal;
+        }
+        return searches.get().search(start, goal);
+    }
+
+    private int clusterOf(int tile) {
+        return grid.xOf(tile) / size + grid.yOf(tile) / size * clustersX;
+    }
+
+    private void build() {
+        Arrays.fill(nodeOfTile, -1);
+        nodeCt = 0;
+        buildCt = 0;
+        int width = grid.width(), height = grid.height();
+        //Entrances between horizontal neighbours, then vertical ones.
+        for(int cy = 0; cy < clustersY; cy++) {
+            for(int cx = 0; cx + 1 < clustersX; cx++) {
+                int x = (cx + 1) * size - 1;
+                scanBorder(grid.index(x, cy * size), 1, width, Math.min(size, height - cy * size));
+            }
+        }
+        for(int cy = 0; cy + 1 < clustersY; cy++) {
+            for(int cx = 0; cx < clustersX; cx++) {
+                int y = (cy + 1) * size - 1;
+                scanBorder(grid.index(cx * size, y), width, 1, Math.min(size, width - cx * size));
+            }
+        }
+        //Nodes by cluster.
+        Arrays.fill(clusterStart, 0);
+        for(int n = 0; n < nodeCt; n++) {
+            clusterStart[clusterOf(nodeTile[n]) + 1]++;
+        }
+        for(int k = 1; k < clusterStart.length; k++) {
+            clusterStart[k] += clusterStart[k - 1];
+        }
+        if(clusterNodes.length < nodeCt) {
+            clusterNodes = new int[nodeTile.length];
+        }
+        int[] fill = Arrays.copyOf(clusterStart, clusterStart.length);
+        for(int n = 0; n < nodeCt; n++) {
+            clusterNodes[fill[clusterOf(nodeTile[n])]++] = n;
+        }
+        //Walks inside every cluster.
+        for(int k = 0; k < clustersX * clustersY; k++) {
+            for(int a = clusterStart[k]; a < clusterStart[k + 1]; a++) {
+                int n = clusterNodes[a];
+                builder.walkCluster(nodeTile[n], k);
+                for(int b = clusterStart[k]; b < clusterStart[k + 1]; b++) {
+                    int m = clusterNodes[b];
+                    int d = builder.walkDist(nodeTile[m]);
+                    if(m != n && d >= 0) {
+                        addEdge(n, m, d);
+                    }
+                }
+            }
+        }
+        //Edges by node.
+        edgeStart = new int[nodeCt + 1];
+        edgeTo = new int[buildCt];
+        edgeCost = new int[buildCt];
+        for(int e = 0; e < buildCt; e++) {
+            edgeStart[buildFrom[e] + 1]++;
+        }
+        for(int n = 1; n <= nodeCt; n++) {
+            edgeStart[n] += edgeStart[n - 1];
+        }
+        fill = Arrays.copyOf(edgeStart, edgeStart.length);
+        for(int e = 0; e < buildCt; e++) {
+            int slot = fill[buildFrom[e]]++;
+            edgeTo[slot] = buildTo[e];
+            edgeCost[slot] = buildCost[e];
+        }
+    }
+
+    /**
+     * Places entrances along one border between two clusters.
+     * @param first  first tile on the near side of the border
+     * @param across index step to the tile on the far side
+     * @param along  index step along the border
+     * @param length number of tiles along the border
+     */
+    private void scanBorder(int first, int across, int along, int length) {
+        int runStart = -1;
+        for(int k = 0; k <= length; k++) {
+            int tile = first + k * along;
+            boolean open = k < length && !grid.isBlock(tile) && !grid.isBlock(tile + across);
+            if(open && runStart < 0) {
+                runStart = k;
+            } else if(!open && runStart >= 0) {
+                int runEnd = k - 1;
+                if(runEnd - runStart + 1 < LONG_RUN) {
+                    int mid = first + (runStart + runEnd) / 2 * along;
+                    addEntrance(mid, mid + across);
+                } else {
+                    int a = first + runStart * along, b = first + runEnd * along;
+                    addEntrance(a, a + across);
+                    addEntrance(b, b + across);
+                }
+                runStart = -1;
+            }
+        }
+    }
+
+    private void addEntrance(int a, int b) {
+        int na = node(a), nb = node(b);
+        addEdge(na, nb, 1);
+        addEdge(nb, na, 1);
+    }
+
+    private int node(int tile) {
+        if(nodeOfTile[tile] < 0) {
+            if(nodeCt == nodeTile.length) {
+                nodeTile = Arrays.copyOf(nodeTile, nodeCt * 2);
+            }
+            nodeTile[nodeCt] = tile;
+            nodeOfTile[tile] = nodeCt++;
+        }
+        return nodeOfTile[tile];
+    }
+
+    private void addEdge(int from, int to, int cost) {
+        if(buildCt == buildFrom.length) {
+            buildFrom = Arrays.copyOf(buildFrom, buildCt * 2);
+            buildTo = Arrays.copyOf(buildTo, buildCt * 2);
+            buildCost = Arrays.copyOf(buildCost, buildCt * 2);
+        }
+        buildFrom[buildCt] = from;
+        buildTo[buildCt] = to;
+        buildCost[buildCt++] = cost;
+    }
+
+    /**
+     * Scratch space of one thread: a BFS inside a cluster, and A* over the
+     * graph. Arrays are stamped instead of cleared.
+     */
+    private class Search {
+
+        //BFS inside one cluster, in cluster-local indices.
+        private final int[] walkDist = new int[size * size];
+        private final int[] walkGen = new int[size * size];
+        private final int[] walkQueue = new int[size * size];
+        private int walkStamp;
+        private int walkX0, walkY0, walkW, walkH;
+
+        //A* over the nodes; node id nodeCt stands for the goal tile.
+        private int[] g = new int[0];
+        private int[] parent = new int[0];
+        private int[] gen = new int[0];
+        private boolean[] closed = new boolean[0];
+        private int[] goalDist = new int[0];
+        private int[] goalGen = new int[0];
+        private int stamp;
+        //Open set, keyed by (f << 32 | node).
+        private long[] heapKey = new long[64];
+        private int heapSize;
+
+        /**
+         * BFS from the tile to every tile of the cluster it can reach without
+         * leaving the cluster.
+         */
+        private void walkCluster(int from, int cluster) {
+            if(++walkStamp == 0) {
+                Arrays.fill(walkGen, 0);
+                walkStamp = 1;
+            }
+            walkX0 = cluster % clustersX * size;
+            walkY0 = cluster / clustersX * size;
+            walkW = Math.min(size, grid.width() - walkX0);
+            walkH = Math.min(size, grid.height() - walkY0);
+            int head = 0, tail = 0;
+            int l = local(from);
+            walkGen[l] = walkStamp;
+            walkDist[l] = 0;
+            walkQueue[tail++] = l;
+            while(head < tail) {
+                int cur = walkQueue[head++];
+                int i = cur / size, j = cur % size;
+                int d = walkDist[cur] + 1;
+                if(i > 0) tail = walkTo(cur - size, d, tail);
+                if(i + 1 < walkH) tail = walkTo(cur + size, d, tail);
+                if(j > 0) tail = walkTo(cur - 1, d, tail);
+                if(j + 1 < walkW) tail = walkTo(cur + 1, d, tail);
+            }
+        }
+
+        private int walkTo(int l, int d, int tail) {
+            if(walkGen[l] == walkStamp || grid.isBlock(grid.index(walkX0 + l % size, walkY0 + l / size))) {
+                return tail;
+            }
+            walkGen[l] = walkStamp;
+            walkDist[l] = d;
+            walkQueue[tail] = l;
+            return tail + 1;
+        }
+
+        /**
+         * @return the steps to the tile found by the last walk, or -1.
+         */
+        private int walkDist(int tile) {
+            int l = local(tile);
+            return walkGen[l] == walkStamp ? walkDist[l] : -1;
+        }
+
+        private int local(int tile) {
+            return (grid.yOf(tile) - walkY0) * size + (grid.xOf(tile) - walkX0);
+        }
+
+        private int search(int start, int goal) {
+            prepare();
+            int goalNode = nodeCt;
+            int gx = grid.xOf(goal), gy = grid.yOf(goal);
+            //Links from the nodes of the goal's cluster to the goal.
+            int cg = clusterOf(goal);
+            walkCluster(goal, cg);
+            for(int a = clusterStart[cg]; a < clusterStart[cg + 1]; a++) {
+                int m = clusterNodes[a];
+                int d = walkDist(nodeTile[m]);
+                if(d >= 0) {
+                    goalGen[m] = stamp;
+                    goalDist[m] = d;
+                }
+            }
+            //Links from the start to the nodes of its cluster.
+            int cs = clusterOf(start);
+            walkCluster(start, cs);
+            for(int a = clusterStart[cs]; a < clusterStart[cs + 1]; a++) {
+                int m = clusterNodes[a];
+                int d = walkDist(nodeTile[m]);
+                if(d >= 0) {
+                    improve(m, d, -1, gx, gy);
+                }
+            }
+            while(heapSize > 0) {
+                int n = pop();
+                if(closed[n]) {
+                    continue;
+                }
+                closed[n] = true;
+                if(n == goalNode) {
+                    return waypoint(start, goal);
+                }
+                if(goalGen[n] == stamp) {
+                    improve(goalNode, g[n] + goalDist[n], n, gx, gy);
+                }
+                for(int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+                    improve(edgeTo[e], g[n] + edgeCost[e], n, gx, gy);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Finds the first node on the way found, skipping a node on the start
+         * tile itself.
+         */
+        private int waypoint(int start, int goal) {
+            int first = -1;
+            for(int n = parent[nodeCt]; n >= 0; n = parent[n]) {
+                if(nodeTile[n] != start) {
+                    first = n;
+                }
+            }
+            return first < 0 ? goal : nodeTile[first];
+        }
+
+        private void improve(int n, int cost, int from, int gx, int gy) {
+            if(gen[n] == stamp && (closed[n] || g[n] <= cost)) {
+                return;
+            }
+            if(gen[n] != stamp) {
+                gen[n] = stamp;
+                closed[n] = false;
+            }
+            g[n] = cost;
+            parent[n] = from;
+            int h = n == nodeCt ? 0 : Math.abs(grid.xOf(nodeTile[n]) - gx) + Math.abs(grid.yOf(nodeTile[n]) - gy);
+            push(((long) (cost + h) << 32) | n);
+        }
+
+        private void prepare() {
+            if(g.length < nodeCt + 1) {
+                int n = nodeCt + 1;
+                g = new int[n];
+                parent = new int[n];
+                gen = new int[n];
+                closed = new boolean[n];
+                goalDist = new int[n];
+                goalGen = new int[n];
+                stamp = 0;
+            }
+            if(++stamp == 0) {
+                Arrays.fill(gen, 0);
+                Arrays.fill(goalGen, 0);
+                stamp = 1;
+            }
+            heapSize = 0;
+        }
+
+        private void push(long key) {
+            if(heapSize == heapKey.length) {
+                heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+            }
+            int k = heapSize++;
+            while(k > 0) {
+                int p = (k - 1) >>> 1;
+                if(heapKey[p] <= key) {
+                    break;
+                }
+                heapKey[k] = heapKey[p];
+                k = p;
+            }
+            heapKey[k] = key;
+        }
+
+        private int pop() {
+            int top = (int) heapKey[0];
+            long key = heapKey[--heapSize];
+            int k = 0;
+            int half = heapSize >>> 1;
+            while(k < half) {
+                int child = 2 * k + 1;
+                if(child + 1 < heapSize && heapKey[child + 1] < heapKey[child]) {
+                    child++;
+                }
+                if(key <= heapKey[child]) {
+                    break;
+                }
+                heapKey[k] = heapKey[child];
+                k = child;
+            }
+            heapKey[k] = key;
+            return top;
+        }
+    }
+}
@@ -5,11 +5,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 
 import firenoo.lib.misc.BiIntFunction;
 import firenoo.lib.structs.MinPriorityQueue;
 import firenoo.lib.data.SaveHelper;
 
+import firenoo.sim.cell.Cell;
+import firenoo.sim.cell.ICell;
+import firenoo.sim.cell.ICellBehavior;
+import firenoo.sim.cell.MetabolismKernel;
+import firenoo.sim.cell.PhenotypeTable;
 import firenoo.sim.log.Logger;
 
 public class Environment implements IEnvironment {
@@ -27,19 +33,39 @@ public class Environment implements IEnvironment {
             LOGGER = new Logger(fileOut);
         }
     }
-    //update rate in updates per second
+    //default update rate in updates per second
     public static final int UPS = 1;
 
     public static final int MAJOR_VERSION = 0;
-    public static final int MINOR_VERSION = 1;
+    //2 - the tick rate is saved; 0 means unthrottled
+    //3 - genomes have 17 genes, with the forget order (MEMF) last
+    public static final int MINOR_VERSION = 3;
 
     private int globalTime;
+    //update rate in updates per second; TickScheduler.UNTHROTTLED runs ticks back to back
     private int ups;
-    private ITile[][] tiles;
+    private TickScheduler scheduler;
+    //Prints the grid after every tick of the game loop; null when headless.
+    private TickScheduler.TickListener printer;
+    //Renderer behind the printer, if it draws to an ANSI terminal.
+    private AnsiRenderer renderer;
+    private GridStore grid;
 
     private int width, height;
+    //Events restored from a save that still have to run this cycle.
     private MinPriorityQueue<Runnable> process;
     private CellMoveHandler moveHandler;
+    private TickEngine engine;
+    //Nearest food for every tile; brought up to date between eating and moving.
+    private FoodField foodField;
+    //Directions towards food around blocks; only built once a cell asks.
+    private FlowField flowField;
+    //Coarse graph for long searches; only built once a cell asks.
+    private ClusterGraph clusterGraph;
+    //One vision window per stripe, reused for every cell of the stripe.
+    private VisionView[] visions;
+    //One metabolism kernel per stripe for the cells with passive metabolism.
+    private MetabolismKernel[] metabolisms;
 
     public Environment(int width, int height) {
         this(width, height, (x, y) -> {
@@ -53,57 +79,154 @@ public class Environment implements IEnvironment {
     
     public Environment(int width, int height, BiIntFunction func) {
         this.globalTime = 0;
+        this.ups = UPS;
+        this.printer = (tick, tickNanos, lagNanos) -> System.out.println(this);
         this.width = width;
         this.height = height;
         //Row-major order
-        this.tiles = new ITile[height][width];
-        this.moveHandler = new CellMoveHandler();
+        this.grid = new GridStore(width, height);
+        this.engine = new TickEngine(height);
+        this.moveHandler = new CellMoveHandler(width, height, engine);
         this.process = new MinPriorityQueue<>((width * height - (2 * (width + height - 2))) * 2);
 		init(func);
+        this.foodField = new FoodField(grid);
+        this.flowField = new FlowField(grid, foodField);
+        this.clusterGraph = new ClusterGraph(grid);
+        this.visions = new VisionView[engine.stripeCount()];
+        for(int i = 0; i < visions.length; i++) {
+            this.visions[i] = new VisionView(grid, foodField, flowField, clusterGraph);
+        }
+        this.metabolisms = new MetabolismKernel[engine.stripeCount()];
+        for(int i = 0; i < metabolisms.length; i++) {
+            this.metabolisms[i] = new MetabolismKernel(grid);
+        }
     }
 	
 	private void init(BiIntFunction func) {
 		for(int i = 0; i < height; i++) {
             for(int j = 0; j < width; j++) {
-                int t = func.apply(j, i);
-                if(t == 1) {
-                    this.tiles[i][j] = Tile.createBlockTile(j, i);
-                } else if(t == 2) {
-                    this.tiles[i][j] = new Tile(0, j, i);
+                //1 - block tile, anything else is a plain tile without food.
+                if(func.apply(j, i) == 1) {
+                    grid.setBlock(grid.index(j, i));
                 }
             }
         }
     }
 
+    /**
+     * Starts ticking on the game thread at the current update rate. Unless
+     * turned off with {@link #setPrintEachTick(boolean)}, the grid is printed
+     * after every tick. Does nothing if the loop is already running.
+     */
     @Override
     public void beginLoop() {
-        Thread thread = new Thread(() -> {
-            while(true) {
-                try {
-                    onCycleUpdate(globalTime++);
-                    System.out.println(this);
-                    Thread.sleep(1000 / UPS);
-                } catch(InterruptedException e) {
-                    e.printStackTrace();
-                }
+        if(scheduler == null) {
+            scheduler = new TickScheduler(this::tick, ups, "game_thread");
+            if(printer != null) {
+                scheduler.addListener(printer);
             }
-    
-        }, "game_thread");
-        thread.start();
+        }
+        scheduler.start();
+    }
+
+    /**
+     * Runs the next cycle on the calling thread and advances the global time.
+     * Must not be called while the game loop is running.
+     */
+    public void tick() {
+        onCycleUpdate(globalTime++);
+    }
+
+    /**
+     * Turns printing the grid after every tick of the game loop on or off.
+     * On by default. Printing builds the whole grid as a string, which on
+     * large grids costs more than the tick itself.
+     */
+    public void setPrintEachTick(boolean print) {
+        setPrinter(print ? (tick, tickNanos, lagNanos) -> System.out.println(this) : null, null);
+    }
+
+    /**
+     * Draws the grid to an ANSI terminal after every tick of the game loop,
+     * redrawing only the tiles that changed. Replaces printing the grid.
+     */
+    public void renderAnsi(PrintStream out) {
+        AnsiRenderer renderer = new AnsiRenderer(grid, out);
+        setPrinter((tick, tickNanos, lagNanos) -> renderer.render(), renderer);
+    }
+
+    /**
+     * Replaces the printer. The renderer of the old printer, if any, stops
+     * tracking changes.
+     */
+    private void setPrinter(TickScheduler.TickListener printer, AnsiRenderer renderer) {
+        if(scheduler != null && this.printer != null) {
+            scheduler.removeListener(this.printer);
+        }
+        if(this.renderer != null) {
+            this.renderer.close();
+        }
+        this.renderer = renderer;
+        this.printer = printer;
+        if(scheduler != null && printer != null) {
+            scheduler.addListener(printer);
+        }
+    }
+
+    /**
+     * Sets the update rate. Takes effect from the next tick if the loop is
+     * running.
+     * @param ups updates per second, or TickScheduler.UNTHROTTLED
+     */
+    public void setUps(int ups) {
+        if(scheduler != null) {
+            scheduler.setUps(ups);
+        } else if(ups < 0) {
+            throw new IllegalArgumentException("Tick rate cannot be negative!");
+        }
+        this.ups = ups;
     }
 
+    public int getUps() {
+        return ups;
+    }
 
+    /**
+     * @return the scheduler of the game thread, or null if the loop was never
+     *         started. Use it to pause, step, stop or watch tick timings.
+     */
+    public TickScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Builds an array of tile views. Prefer {@link #getGrid()} in loops; this
+     * allocates one view per tile.
+     */
     @Override
     public ITile[][] getTiles() {
+        ITile[][] tiles = new ITile[height][width];
+        for(int i = 0; i < height; i++) {
+            for(int j = 0; j < width; j++) {
+                tiles[i][j] = grid.tile(grid.index(j, i));
+            }
+        }
         return tiles;
     }
 
+    /**
+     * The backing store of the tiles.
+     */
+    public GridStore getGrid() {
+        return grid;
+    }
+
     @Override
     public ITile getTile(int x, int y) {
-        if(x < 0 || y < 0 || x >= width || y >= height) {
+        if(!grid.inBounds(x, y)) {
             return null;
         } else {
-            return tiles[y][x];
+            return grid.tile(grid.index(x, y));
         }
     }
 
@@ -134,28 +257,57 @@ public class Environment implements IEnvironment {
     }
 
     /**
-     * Every cycle, this is called.
+     * Every cycle, this is called. The eat phase and the move phase each run
+     * across all stripes of the grid, and the move phase starts only once every
+     * cell has eaten. The move handler keeps one shard per stripe and merges
+     * them in stripe order, so the outcome is the same as running the events
+     * one by one in tile order. Only tiles with a cell are visited. Cells with
+     * the passive metabolism eat together, per stripe, in a metabolism kernel;
+     * eating only touches the cell's own tile, so this changes nothing. The food
+     * and flow fields and the cluster graph are updated in between, so moves
+     * see the food left after eating.
      * @param globalTime
      */
     @Override
     public void onCycleUpdate(int globalTime) {
-        for(int i = 0; i < tiles.length; i++) {
-            for(int j = 0; j < tiles[i].length; j++) {
-                ITile tile = tiles[i][j];
-                if(tile.getCell() != null) {
-                    if(tile.getCell().getBehavior() != null) {
-                        ITile[][] vision = getTilesInRange(j, i, tile.getCell().getBehavior().getVisionRange());
-                        process.enqueue(() -> tile.getCell().getBehavior().eatEvent(vision, globalTime), tile.getX() + tile.getY() * width);
-                        process.enqueue(() -> tile.getCell().getBehavior().moveEvent(vision, moveHandler, globalTime), (width * height) +  (tile.getX() + tile.getY() * width));
-                    }
-    
-                }
+        //Finish whatever was left over when the save was made.
+        if(!process.isEmpty()) {
+            foodField.update();
+            flowField.update();
+            clusterGraph.update();
+            while(!process.isEmpty()) {
+                process.dequeue().run();
             }
         }
-        while(!process.isEmpty()) {
-            process.dequeue().run();
-        }
-        moveHandler.resolveAll(tiles);
+        engine.forEachStripe((stripe, fromRow, toRow) -> {
+            VisionView vision = visions[stripe];
+            MetabolismKernel metabolism = metabolisms[stripe];
+            int end = toRow * width;
+            for(int index = grid.nextCell(fromRow * width); index >= 0 && index < end; index = grid.nextCell(index + 1)) {
+                ICellBehavior behavior = grid.cell(index).getBehavior();
+                if(behavior != null && !metabolism.add(behavior, index)) {
+                    vision.reset(grid.xOf(index), grid.yOf(index), behavior.getVisionRange());
+                    behavior.eatEvent(vision, globalTime);
+                }
+            }
+            metabolism.eat();
+            metabolism.clear();
+        });
+        foodField.update();
+        flowField.update();
+        clusterGraph.update();
+        engine.forEachStripe((stripe, fromRow, toRow) -> {
+            VisionView vision = visions[stripe];
+            int end = toRow * width;
+            for(int index = grid.nextCell(fromRow * width); index >= 0 && index < end; index = grid.nextCell(index + 1)) {
+                ICell cell = grid.cell(index);
+                if(cell.getBehavior() != null) {
+                    vision.reset(grid.xOf(index), grid.yOf(index), cell.getBehavior().getVisionRange());
+                    cell.getBehavior().moveEvent(vision, moveHandler, globalTime);
+                }
+            }
+        });
+        moveHandler.resolveAll(grid);
     }
     
     @Override
@@ -170,14 +322,16 @@ public class Environment implements IEnvironment {
         if(r > height) r = height;
         int diameter = r * 2 + 1;
         ITile[][] result = new ITile[diameter][diameter];
-        for(int i = 0; i < diameter; i++) {
-            for(int j = 0; j < diameter; j++) {
-                if(IEnvironment.taxicabDist(x - r + j, y - r + i, x, y) <= r) {
-                    result[i][j] = getTile(x - r + j, y - r + i);
-                }
+        //Walk the diamond row by row; each row is a contiguous run in the grid.
+        int i0 = Math.max(0, r - y), i1 = Math.min(diameter, height - y + r);
+        for(int i = i0; i < i1; i++) {
+            int span = r - Math.abs(i - r);
+            int j0 = Math.max(r - span, r - x), j1 = Math.min(r + span + 1, width - x + r);
+            int index = grid.index(x - r + j0, y - r + i);
+            for(int j = j0; j < j1; j++, index++) {
+                result[i][j] = grid.tile(index);
             }
         }
-        
 
         return result;
     }
@@ -186,9 +340,9 @@ public class Environment implements IEnvironment {
     public String toString() {
         StringBuilder b = new StringBuilder();
         b.append(super.toString()).append('\n');
-        for(int i = 0; i < tiles.length; i++) {
-            for(int j = 0; j < tiles[i].length; j++) {
-                b.append(tiles[i][j].toString());
+        for(int i = 0, index = 0; i < height; i++) {
+            for(int j = 0; j < width; j++, index++) {
+                b.append(grid.glyph(index));
             }
             b.append('\n');
         }
@@ -205,10 +359,8 @@ public class Environment implements IEnvironment {
             SaveHelper.writeInt(height, stream);
             SaveHelper.writeInt(ups, stream);
             SaveHelper.writeInt(globalTime, stream);
-            for(ITile[] row : tiles) {
-                for(ITile tile : row) {
-                    tile.serialize(stream);
-                }
+            for(int i = 0; i < grid.size(); i++) {
+                grid.serialize(i, stream);
             }
             SaveHelper.writeInt(process.elementCt(), stream);
             while(!process.isEmpty()) {
@@ -254,27 +406,41 @@ public class Environment implements IEnvironment {
             //warning for minor version
             LOGGER.warn("Minor version is not the same, may cause unexpected behavior.");
         }
+        int geneCount = Cell.RiboImpl.DnaBuilder.TRAIT_COUNT;
+        if(majVer == 0 && minVer < 3) {
+            LOGGER.warn("Genomes of this save have no forget order gene; cells will use the default policy.");
+            geneCount = PhenotypeTable.LEGACY_TRAIT_COUNT;
+        }
         env.ups = SaveHelper.readInt(stream);
+        if((majVer == 0 && minVer < 2) || env.ups < 0) {
+            //Older saves never set the rate.
+            env.ups = UPS;
+        }
         env.globalTime = SaveHelper.readInt(stream);        
-        for(int i = 0; i < height; i++) {
-            for(int j = 0; j < width; j++) {
-                env.tiles[i][j] = Tile.deserialize(j, i, stream);
-                //env.logger.logf("Loaded position %d, %d", j, i);
-            }
+        Cell.Loader cells = new Cell.Loader(geneCount);
+        for(int i = 0; i < env.grid.size(); i++) {
+            env.grid.deserialize(i, stream, cells);
+            //env.logger.logf("Loaded position %d, %d", j, i);
         }
+        cells.finish();
         int nextUpdate = SaveHelper.readInt(stream);
         for(int i = 0; i < nextUpdate; i++) {
             int type = stream.read();
             int x = SaveHelper.readInt(stream);
             int y = SaveHelper.readInt(stream);
+            //The vision window is only set up when the event runs.
             if(type == 1) {
-                ITile tile = env.getTile(x, y);
-                ITile[][] vision = env.getTilesInRange(x, y, tile.getCell().getBehavior().getVisionRange());
-                env.process.enqueue(() -> tile.getCell().getBehavior().eatEvent(vision, env.globalTime), x + (y * width));
+                env.process.enqueue(() -> {
+                    ICell cell = env.grid.cell(env.grid.index(x, y));
+                    VisionView vision = env.visions[0].reset(x, y, cell.getBehavior().getVisionRange());
+                    cell.getBehavior().eatEvent(vision, env.globalTime);
+                }, x + (y * width));
             } else if(type == 2) {
-                ITile tile = env.getTile(x, y);
-                ITile[][] vision = env.getTilesInRange(x, y, tile.getCell().getBehavior().getVisionRange());
-                env.process.enqueue(() -> tile.getCell().getBehavior().moveEvent(vision, env.moveHandler, env.globalTime), x + (y * width) + (width * height));
+                env.process.enqueue(() -> {
+                    ICell cell = env.grid.cell(env.grid.index(x, y));
+                    VisionView vision = env.visions[0].reset(x, y, cell.getBehavior().getVisionRange());
+                    cell.getBehavior().moveEvent(vision, env.moveHandler, env.globalTime);
+                }, x + (y * width) + (width * height));
             } else {
                 LOGGER.errorf("Move process %d: Type cannot be discerned.", i);
                 throw new IOException("Type cannot be discerned.");
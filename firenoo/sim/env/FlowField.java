@@ -0,0 +1,130 @@
+package firenoo.sim.env;
+
+import java.util.Arrays;
+
+/**
+ * For every tile, the direction of the first step of a shortest walk to the
+ * nearest food source, around blocks. Cells do not block the walk; they move
+ * away, and move resolution sorts out who gets a tile.
+ * <p>
+ * The field is one BFS over the whole grid from all sources of the
+ * {@link FoodField} at once. It is rebuilt between eating and moving, and
+ * only when the sources or the block layout changed since the last build.
+ * Nothing is built until some cell asks for a direction; that first cell gets
+ * NONE and the field is ready from the next cycle on. Environments whose cells
+ * never ask pay nothing.
+ * Building is not thread-safe; lookups are, while no build runs.
+ */
+public class FlowField {
+
+    public static final int NORTH = GridStore.NORTH;
+    public static final int SOUTH = GridStore.SOUTH;
+    public static final int WEST = GridStore.WEST;
+    public static final int EAST = GridStore.EAST;
+    /**
+     * Direction of sources, blocks and tiles that cannot reach any source.
+     */
+    public static final int NONE = -1;
+
+    private final GridStore grid;
+    private final FoodField food;
+    private final int width, height;
+
+    private final byte[] dir;
+    private final int[] dist;
+    private final int[] queue;
+
+    private volatile boolean wanted;
+    private boolean built;
+    private int foodEpoch, blockEpoch;
+
+    public FlowField(GridStore grid, FoodField food) {
+        this.grid = grid;
+        this.food = food;
+        this.width = grid.width();
+        this.height = grid.height();
+        this.dir = new byte[grid.size()];
+        this.dist = new int[grid.size()];
+        this.queue = new int[grid.size()];
+    }
+
+    /**
+     * @return the direction to step in from the tile, or NONE.
+     */
+    public int direction(int index) {
+        if(!built) {
+            wanted = true;
+            return NONE;
+        }
+        return dir[index];
+    }
+
+    /**
+     * @return the number of steps from the tile to the nearest source around
+     *         blocks, or FoodField.NONE if there is no way or the field is not
+     *         built yet.
+     */
+    public int dist(int index) {
+        if(!built) {
+            wanted = true;
+            return FoodField.NONE;
+        }
+        return dist[index];
+    }
+
+    /**
+     * @return the neighbour in the given direction. The direction must not be
+     *         NONE.
+     */
+    public int step(int index, int direction) {
+        switch(direction) {
+            case NORTH: return index - width;
+            case SOUTH: return index + width;
+            case WEST: return index - 1;
+            case EAST: return index + 1;
+            default:
+                throw new IllegalArgumentException("Direction must be an integer from 0 to 3!");
+        }
+    }
+
+    /**
+     * Rebuilds the field if a cell asked for it and it is out of date. The
+     * food field must be up to date.
+     */
+    public void update() {
+        if(!wanted || (built && food.epoch() == foodEpoch && grid.blockEpoch() == blockEpoch)) {
+            return;
+        }
+        foodEpoch = food.epoch();
+        blockEpoch = grid.blockEpoch();
+        Arrays.fill(dir, (byte) NONE);
+        Arrays.fill(dist, FoodField.NONE);
+        int head = 0, tail = 0;
+        for(int i = food.nextSource(0); i >= 0; i = food.nextSource(i + 1)) {
+            dist[i] = 0;
+            queue[tail++] = i;
+        }
+        //Tiles are reached from the side of the tile they step to, so the
+        //direction points back the opposite way.
+        while(head < tail) {
+            int i = queue[head++];
+            int d = dist[i] + 1;
+            int x = grid.xOf(i), y = grid.yOf(i);
+            if(y < height - 1) tail = reach(i + width, NORTH, d, tail);
+            if(y > 0) tail = reach(i - width, SOUTH, d, tail);
+            if(x < width - 1) tail = reach(i + 1, WEST, d, tail);
+            if(x > 0) tail = reach(i - 1, EAST, d, tail);
+        }
+        built = true;
+    }
+
+    private int reach(int i, int direction, int d, int tail) {
+        if(dist[i] != FoodField.NONE || grid.isBlock(i)) {
+            return tail;
+        }
+        dist[i] = d;
+        dir[i] = (byte) direction;
+        queue[tail] = i;
+        return tail + 1;
+    }
+}
@@ -0,0 +1,290 @@
+package firenoo.sim.env;
+
+import java.util.Arrays;
+
+/**
+ * Distance from every tile to the nearest food source, shared by all cells.
+ * A source is a tile with food on it and no cell. Like the search cells used
+ * to run through their vision window, distances ignore blocks and cells, so
+ * the distance is the taxicab distance to the nearest source. Among sources
+ * at the same distance, the one with the lowest index is the nearest, so the
+ * field only depends on the current sources, not on the order of updates.
+ * <p>
+ * The field is built once and then kept up to date with the tiles that
+ * changed since the last {@link #update()}:
+ * <ul>
+ *  <li>A new source spreads out until it meets tiles that are at least as
+ *      close to another source.</li>
+ *  <li>A lost source clears the tiles it was nearest to. They are then filled
+ *      in again from the surrounding tiles.</li>
+ * </ul>
+ * Both only touch the tiles whose nearest source changes, plus their border.
+ * Updating is not thread-safe; lookups are, while no update runs.
+ */
+public class FoodField {
+
+    /**
+     * Distance of tiles that have no source at all.
+     */
+    public static final int NONE = Integer.MAX_VALUE;
+
+    private final GridStore grid;
+    private final ChangeSet changes;
+    private final int width, height;
+
+    private final int[] dist;
+    private final int[] source;
+    private final BitIndex sources;
+    //Counts the updates that changed the sources.
+    private int epoch;
+
+    //Tiles cleared by lost sources.
+    private int[] cleared = new int[64];
+    private int clearedCt;
+    //Added sources, to apply after the clearing.
+    private int[] added = new int[64];
+    private int addedCt;
+
+    //Min-heap of tiles to spread from, keyed by (dist << 32 | source).
+    private long[] heapKey = new long[64];
+    private int[] heapTile = new int[64];
+    private int heapSize;
+
+    public FoodField(GridStore grid) {
+        this.grid = grid;
+        this.changes = grid.trackChanges();
+        this.width = grid.width();
+        this.height = grid.height();
+        this.dist = new int[grid.size()];
+        this.source = new int[grid.size()];
+        this.sources = new BitIndex(grid.size());
+        Arrays.fill(dist, NONE);
+        Arrays.fill(source, -1);
+        for(int i = 0; i < grid.size(); i++) {
+            if(isSource(i)) {
+                sources.set(i);
+                set(i, 0, i);
+            }
+        }
+        spread();
+        changes.clear();
+    }
+
+    /**
+     * @return True iff the tile counts as food for hungry cells.
+     */
+    public boolean isSource(int index) {
+        //Blocks never have food.
+        return grid.hasFood(index) && !grid.hasCell(index);
+    }
+
+    /**
+     * @return a number that changes whenever an update changed the sources.
+     */
+    public int epoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the index of the first source at or after from, or -1 if there
+     *         is none.
+     */
+    public int nextSource(int from) {
+        return sources.nextSetBit(from);
+    }
+
+    /**
+     * @return the taxicab distance from the tile to the nearest source, or
+     *         NONE if there is no source.
+     */
+    public int dist(int index) {
+        return dist[index];
+    }
+
+    /**
+     * @return the index of the nearest source, or -1 if there is none.
+     */
+    public int nearest(int index) {
+        return source[index];
+    }
+
+    /**
+     * @return the index of the neighbour one step closer to the nearest source,
+     *         looking north, south, west, east in that order; or -1 if the tile
+     *         is a source or there is none.
+     */
+    public int next(int index) {
+        int d = dist[index];
+        if(d == 0 || d == NONE) {
+            return -1;
+        }
+        int src = source[index];
+        int x = grid.xOf(index), y = grid.yOf(index);
+        if(y > 0 && isOnPath(index - width, d, src)) return index - width;
+        if(y < height - 1 && isOnPath(index + width, d, src)) return index + width;
+        if(x > 0 && isOnPath(index - 1, d, src)) return index - 1;
+        if(x < width - 1 && isOnPath(index + 1, d, src)) return index + 1;
+        return -1;
+    }
+
+    private boolean isOnPath(int n, int d, int src) {
+        return dist[n] == d - 1 && source[n] == src;
+    }
+
+    /**
+     * Applies the changes to the grid since the last update.
+     */
+    public void update() {
+        clearedCt = 0;
+        addedCt = 0;
+        for(int i = changes.next(0); i >= 0; i = changes.next(i + 1)) {
+            boolean was = sources.get(i), is = isSource(i);
+            if(was && !is) {
+                sources.clear(i);
+                clearRegion(i);
+            } else if(!was && is) {
+                sources.set(i);
+                if(addedCt == added.length) {
+                    added = Arrays.copyOf(added, addedCt * 2);
+                }
+                added[addedCt++] = i;
+            }
+        }
+        changes.clear();
+        if(clearedCt > 0 || addedCt > 0) {
+            epoch++;
+        }
+        //Refill the cleared tiles from their neighbours that kept a source.
+        for(int k = 0; k < clearedCt; k++) {
+            int i = cleared[k];
+            int x = grid.xOf(i), y = grid.yOf(i);
+            if(y > 0) offerFrom(i - width, i);
+            if(y < height - 1) offerFrom(i + width, i);
+            if(x > 0) offerFrom(i - 1, i);
+            if(x < width - 1) offerFrom(i + 1, i);
+        }
+        for(int k = 0; k < addedCt; k++) {
+            set(added[k], 0, added[k]);
+        }
+        spread();
+    }
+
+    /**
+     * Clears every tile whose nearest source is the given one. These tiles are
+     * connected: each one has a neighbour one step closer to the same source.
+     */
+    private void clearRegion(int src) {
+        int start = clearedCt;
+        push(src);
+        dist[src] = NONE;
+        source[src] = -1;
+        for(int k = start; k < clearedCt; k++) {
+            int i = cleared[k];
+            int x = grid.xOf(i), y = grid.yOf(i);
+            if(y > 0) clearIfFrom(i - width, src);
+            if(y < height - 1) clearIfFrom(i + width, src);
+            if(x > 0) clearIfFrom(i - 1, src);
+            if(x < width - 1) clearIfFrom(i + 1, src);
+        }
+    }
+
+    private void clearIfFrom(int i, int src) {
+        if(source[i] == src) {
+            dist[i] = NONE;
+            source[i] = -1;
+            push(i);
+        }
+    }
+
+    private void push(int i) {
+        if(clearedCt == cleared.length) {
+            cleared = Arrays.copyOf(cleared, clearedCt * 2);
+        }
+        cleared[clearedCt++] = i;
+    }
+
+    private void offerFrom(int from, int to) {
+        if(dist[from] != NONE) {
+            offer(to, dist[from] + 1, source[from]);
+        }
+    }
+
+    private void offer(int i, int d, int src) {
+        long key = key(d, src);
+        if(dist[i] == NONE || key < key(dist[i], source[i])) {
+            set(i, d, src);
+        }
+    }
+
+    private void set(int i, int d, int src) {
+        dist[i] = d;
+        source[i] = src;
+        heapPush(key(d, src), i);
+    }
+
+    /**
+     * Spreads from the queued tiles, closest first, until nothing improves.
+     */
+    private void spread() {
+        while(heapSize > 0) {
+            long key = heapKey[0];
+            int i = heapPop();
+            if(key != key(dist[i], source[i])) {
+                //Improved since it was queued.
+                continue;
+            }
+            int d = dist[i] + 1, src = source[i];
+            int x = grid.xOf(i), y = grid.yOf(i);
+            if(y > 0) offer(i - width, d, src);
+            if(y < height - 1) offer(i + width, d, src);
+            if(x > 0) offer(i - 1, d, src);
+            if(x < width - 1) offer(i + 1, d, src);
+        }
+    }
+
+    private static long key(int d, int src) {
+        return ((long) d << 32) | src;
+    }
+
+    private void heapPush(long key, int tile) {
+        if(heapSize == heapKey.length) {
+            heapKey = Arrays.copyOf(heapKey, heapSize * 2);
+            heapTile = Arrays.copyOf(heapTile, heapSize * 2);
+        }
+        int k = heapSize++;
+        while(k > 0) {
+            int p = (k - 1) >>> 1;
+            if(heapKey[p] <= key) {
+                break;
+            }
+            heapKey[k] = heapKey[p];
+            heapTile[k] = heapTile[p];
+            k = p;
+        }
+        heapKey[k] = key;
+        heapTile[k] = tile;
+    }
+
+    private int heapPop() {
+        int top = heapTile[0];
+        long key = heapKey[--heapSize];
+        int tile = heapTile[heapSize];
+        int k = 0;
+        int half = heapSize >>> 1;
+        while(k < half) {
+            int child = 2 * k + 1;
+            if(child + 1 < heapSize && heapKey[child + 1] < heapKey[child]) {
+                child++;
+            }
+            if(key <= heapKey[child]) {
+                break;
+            }
+            heapKey[k] = heapKey[child];
+            heapTile[k] = heapTile[child];
+            k = child;
+        }
+        heapKey[k] = key;
+        heapTile[k] = tile;
+        return top;
+    }
+}
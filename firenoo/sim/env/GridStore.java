@@ -0,0 +1,675 @@
+package firenoo.sim.env;
+
+import firenoo.sim.cell.Cell;
+import firenoo.sim.cell.ICell;
+import firenoo.sim.buffer.DoubleBoundedBuffer;
+
+import firenoo.lib.data.SaveHelper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stores the tiles of the grid as flat primitive arrays instead of one object
+ * per tile. Tiles are addressed by their index, x + y * width (row-major order).
+ * <ul>
+ *  <li>food - food on the tile</li>
+ *  <li>maxFood - food capacity of the tile</li>
+ *  <li>blocks - bitset, a set bit marks a block tile</li>
+ *  <li>cellSlot - slot of the tile's cell in the cell table, or -1</li>
+ *  <li>occupied - {@link BitIndex} of the tiles that hold a cell</li>
+ *  <li>foodBits - bitset, a set bit marks a tile with food on it</li>
+ * </ul>
+ * The three bitsets are the layers BLOCKS, CELLS and FOOD. Questions about
+ * many tiles at once, like the open neighbours of a tile or the number of
+ * food tiles in a vision window, read them a word at a time instead of tile
+ * by tile; see {@link #neighbors(int, int)} and
+ * {@link #countInRange(int, int, int, int, int)}.
+ * Changes to a tile's cell, food or block state are recorded in every
+ * {@link ChangeSet} handed out by {@link #trackChanges()}.
+ * {@link ITile}s handed out by {@link #tile(int)} are small views that read and
+ * write these arrays; two views of the same tile are equal.
+ * Changing cells is not thread-safe. Food of different tiles may be changed
+ * from different threads.
+ */
+public class GridStore {
+
+    public static final double DEFAULT_MAX_FOOD = 20;
+
+    /**
+     * Bits of the neighbour masks, in the order cells look around.
+     */
+    public static final int NORTH = 0;
+    public static final int SOUTH = 1;
+    public static final int WEST = 2;
+    public static final int EAST = 3;
+
+    /**
+     * Layers for the bitset queries.
+     */
+    public static final int BLOCKS = 0;
+    public static final int CELLS = 1;
+    public static final int FOOD = 2;
+    /**
+     * Passed as the excluded layer to exclude nothing.
+     */
+    public static final int NO_LAYER = -1;
+
+    private final int width, height;
+
+    private final double[] food;
+    private final double[] maxFood;
+    private final long[] blocks;
+    private final int[] cellSlot;
+    private final BitIndex occupied;
+    //Atomic because food of neighbouring tiles may change on different threads.
+    private final AtomicLongArray foodBits;
+    private volatile ChangeSet[] changeSets = new ChangeSet[0];
+    //Counts the changes to the block layout.
+    private int blockEpoch;
+
+    //Cell table. Freed slots are reused before the table grows.
+    private ICell[] cells;
+    private int slotCt;
+    private int[] freeSlots;
+    private int freeCt;
+
+    public GridStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int size = width * height;
+        this.food = new double[size];
+        this.maxFood = new double[size];
+        this.blocks = new long[(size + 63) >>> 6];
+        this.cellSlot = new int[size];
+        this.occupied = new BitIndex(size);
+        this.foodBits = new AtomicLongArray(blocks.length);
+        for(int i = 0; i < size; i++) {
+            maxFood[i] = DEFAULT_MAX_FOOD;
+            cellSlot[i] = -1;
+        }
+        this.cells = new ICell[16];
+        this.freeSlots = new int[16];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * The number of tiles in the grid.
+     */
+    public int size() {
+        return food.length;
+    }
+
+    public int index(int x, int y) {
+        return x + y * width;
+    }
+
+    public int xOf(int index) {
+        return index % width;
+    }
+
+    public int yOf(int index) {
+        return index / width;
+    }
+
+    /**
+     * @return True iff (x, y) is inside the grid.
+     */
+    public boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    public boolean isBlock(int index) {
+        return (blocks[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Turns the tile into a block tile. Food and cells on the tile are removed.
+     */
+    public void setBlock(int index) {
+        putCell(index, null);
+        blocks[index >>> 6] |= 1L << index;
+        food[index] = 0;
+        maxFood[index] = 0;
+        updateFoodBit(index);
+        blockEpoch++;
+        markDirty(index);
+    }
+
+    /**
+     * @return a number that changes whenever a tile turns into a block.
+     */
+    public int blockEpoch() {
+        return blockEpoch;
+    }
+
+    /**
+     * @return the food on the tile. Always 0 for block tiles.
+     */
+    public double food(int index) {
+        return food[index];
+    }
+
+    /**
+     * @return True iff there is food on the tile.
+     */
+    public boolean hasFood(int index) {
+        return (foodBits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    public double maxFood(int index) {
+        return maxFood[index];
+    }
+
+    /**
+     * Sets the food on the tile, clamped to [0, maxFood]. Does nothing on
+     * block tiles.
+     */
+    public void setFood(int index, double value) {
+        if(!isBlock(index)) {
+            double clamped = Math.max(0, Math.min(maxFood[index], value));
+            if(food[index] != clamped) {
+                food[index] = clamped;
+                updateFoodBit(index);
+                markDirty(index);
+            }
+        }
+    }
+
+    /**
+     * Sets the food capacity of the tile. The food on the tile is clamped to
+     * the new capacity. Does nothing on block tiles.
+     */
+    public void setMaxFood(int index, double value) {
+        if(!isBlock(index)) {
+            maxFood[index] = Math.max(0, value);
+            food[index] = Math.min(food[index], maxFood[index]);
+            updateFoodBit(index);
+            markDirty(index);
+        }
+    }
+
+    /**
+     * @return True iff a cell is on the tile.
+     */
+    public boolean hasCell(int index) {
+        return cellSlot[index] >= 0;
+    }
+
+    /**
+     * @return the cell on the tile, or null if there is none.
+     */
+    public ICell cell(int index) {
+        int slot = cellSlot[index];
+        return slot < 0 ? null : cells[slot];
+    }
+
+    /**
+     * @return the index of the first tile at or after from that holds a cell,
+     *         or -1 if there is none. Skips empty stretches of the grid
+     *         without looking at their tiles.
+     */
+    public int nextCell(int from) {
+        return occupied.nextSetBit(from);
+    }
+
+    /**
+     * The number of cells on the grid.
+     */
+    public int cellCount() {
+        return occupied.count();
+    }
+
+    private void updateFoodBit(int index) {
+        int w = index >>> 6;
+        long bit = 1L << index;
+        boolean has = food[index] > 0;
+        if(((foodBits.get(w) & bit) != 0) != has) {
+            if(has) {
+                foodBits.getAndAccumulate(w, bit, (a, b) -> a | b);
+            } else {
+                foodBits.getAndAccumulate(w, ~bit, (a, b) -> a & b);
+            }
+        }
+    }
+
+    /**
+     * @return True iff the tile is set in the layer.
+     */
+    public boolean test(int layer, int index) {
+        return (word(layer, index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * @return the mask of the neighbours of the tile that are inside the grid
+     *         and set in the layer. Bit NORTH is the tile above, and so on.
+     */
+    public int neighbors(int index, int layer) {
+        int x = xOf(index), y = yOf(index);
+        int mask = 0;
+        if(y > 0 && test(layer, index - width)) mask |= 1 << NORTH;
+        if(y < height - 1 && test(layer, index + width)) mask |= 1 << SOUTH;
+        //West and east usually share a word with the tile itself.
+        int w = index >>> 6;
+        long word = word(layer, w);
+        if(x > 0) {
+            long bits = (index - 1) >>> 6 == w ? word : word(layer, (index - 1) >>> 6);
+            if((bits & (1L << (index - 1))) != 0) mask |= 1 << WEST;
+        }
+        if(x < width - 1) {
+            long bits = (index + 1) >>> 6 == w ? word : word(layer, (index + 1) >>> 6);
+            if((bits & (1L << (index + 1))) != 0) mask |= 1 << EAST;
+        }
+        return mask;
+    }
+
+    /**
+     * @return the mask of the neighbours of the tile that are inside the grid
+     *         and not blocks.
+     */
+    public int openNeighbors(int index) {
+        int x = xOf(index), y = yOf(index);
+        int inside = 0;
+        if(y > 0) inside |= 1 << NORTH;
+        if(y < height - 1) inside |= 1 << SOUTH;
+        if(x > 0) inside |= 1 << WEST;
+        if(x < width - 1) inside |= 1 << EAST;
+        return inside & ~neighbors(index, BLOCKS);
+    }
+
+    /**
+     * Counts the tiles within the taxicab range of (x, y) that are set in the
+     * layer and not in the excluded layer, a row of the diamond at a time.
+     * @param without the excluded layer, or NO_LAYER
+     */
+    public int countInRange(int layer, int without, int x, int y, int range) {
+        int count = 0;
+        int top = Math.max(0, y - range), bottom = Math.min(height - 1, y + range);
+        for(int row = top; row <= bottom; row++) {
+            int half = range - Math.abs(row - y);
+            int from = Math.max(0, x - half), to = Math.min(width - 1, x + half);
+            if(from <= to) {
+                count += countBits(layer, without, index(from, row), index(to, row) + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the tiles in [from, to) that are set in the layer and not in the
+     * excluded layer.
+     * @param without the excluded layer, or NO_LAYER
+     */
+    public int countBits(int layer, int without, int from, int to) {
+        if(from >= to) {
+            return 0;
+        }
+        int first = from >>> 6, last = (to - 1) >>> 6;
+        int count = 0;
+        for(int w = first; w <= last; w++) {
+            long bits = word(layer, w);
+            if(without != NO_LAYER) {
+                bits &= ~word(without, w);
+            }
+            if(w == first) {
+                bits &= -1L << from;
+            }
+            if(w == last) {
+                bits &= -1L >>> (63 - ((to - 1) & 63));
+            }
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    /**
+     * @return the first tile at or after from that is set in the layer, or -1
+     *         if there is none.
+     */
+    public int nextSet(int layer, int from) {
+        if(layer == CELLS) {
+            return occupied.nextSetBit(from);
+        }
+        if(from < 0) {
+            from = 0;
+        }
+        if(from >= size()) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long bits = word(layer, w) & (-1L << from);
+        int words = blocks.length;
+        while(bits == 0) {
+            if(++w == words) {
+                return -1;
+            }
+            bits = word(layer, w);
+        }
+        int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+        return index < size() ? index : -1;
+    }
+
+    private long word(int layer, int w) {
+        switch(layer) {
+            case BLOCKS: return blocks[w];
+            case CELLS: return occupied.word(w);
+            case FOOD: return foodBits.get(w);
+            default:
+                throw new IllegalArgumentException("Unknown layer: " + layer);
+        }
+    }
+
+    /**
+     * Puts the cell on the tile, replacing the existing cell. The cell is told
+     * about its new tile. Block tiles never hold cells.
+     * @param cell the cell to put on the tile, or null to clear the tile.
+     * @return the cell that was replaced, or null if no cell existed prior.
+     * @throws IllegalArgumentException if a cell is put on a block tile.
+     */
+    public ICell putCell(int index, ICell cell) {
+        if(isBlock(index)) {
+            if(cell != null) {
+                throw new IllegalArgumentException(String.format("Cannot put a cell on a block. (Position: %d, %d)", xOf(index), yOf(index)));
+            }
+            return null;
+        }
+        int slot = cellSlot[index];
+        ICell ret = null;
+        if(slot >= 0) {
+            ret = cells[slot];
+            if(cell == null) {
+                cells[slot] = null;
+                releaseSlot(slot);
+                cellSlot[index] = -1;
+                occupied.clear(index);
+            } else {
+                cells[slot] = cell;
+            }
+        } else if(cell != null) {
+            slot = acquireSlot();
+            cells[slot] = cell;
+            cellSlot[index] = slot;
+            occupied.set(index);
+        }
+        if(cell != ret) {
+            markDirty(index);
+        }
+        if(cell != null) {
+            cell.moveTo(tile(index));
+        }
+        return ret;
+    }
+
+    private int acquireSlot() {
+        if(freeCt > 0) {
+            return freeSlots[--freeCt];
+        }
+        if(slotCt == cells.length) {
+            ICell[] grown = new ICell[cells.length * 2];
+            System.arraycopy(cells, 0, grown, 0, slotCt);
+            cells = grown;
+        }
+        return slotCt++;
+    }
+
+    private void releaseSlot(int slot) {
+        if(freeCt == freeSlots.length) {
+            int[] grown = new int[freeSlots.length * 2];
+            System.arraycopy(freeSlots, 0, grown, 0, freeCt);
+            freeSlots = grown;
+        }
+        freeSlots[freeCt++] = slot;
+    }
+
+    /**
+     * Creates a set that collects the tiles changed from now on. Release it
+     * with {@link #untrackChanges(ChangeSet)} once it is no longer read.
+     * Safe to call while tiles change, though changes made at the same time
+     * may be missed by the new set.
+     */
+    public synchronized ChangeSet trackChanges() {
+        ChangeSet set = new ChangeSet(size());
+        ChangeSet[] sets = Arrays.copyOf(changeSets, changeSets.length + 1);
+        sets[sets.length - 1] = set;
+        changeSets = sets;
+        return set;
+    }
+
+    /**
+     * Stops marking changes in the set. Does nothing if the set is not
+     * tracked by this grid.
+     */
+    public synchronized void untrackChanges(ChangeSet set) {
+        ChangeSet[] sets = changeSets;
+        for(int i = 0; i < sets.length; i++) {
+            if(sets[i] == set) {
+                ChangeSet[] left = new ChangeSet[sets.length - 1];
+                System.arraycopy(sets, 0, left, 0, i);
+                System.arraycopy(sets, i + 1, left, i, left.length - i);
+                changeSets = left;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the tile as changed in every change set. Safe to call from any
+     * thread.
+     */
+    public void markDirty(int index) {
+        for(ChangeSet set : changeSets) {
+            set.mark(index);
+        }
+    }
+
+    /**
+     * @return a view of the tile at the index. Views are not cached, but two
+     *         views of the same tile are equal.
+     */
+    public ITile tile(int index) {
+        return new TileView(index);
+    }
+
+    /**
+     * @return the character used for the tile when printing the grid.
+     */
+    public char glyph(int index) {
+        if(isBlock(index)) {
+            return 'B';
+        } else if(hasCell(index)) {
+            return 'C';
+        } else {
+            return 'T';
+        }
+    }
+
+    /**
+     * Writes the tile in the same format as {@link Tile#serialize(OutputStream)}.
+     */
+    public void serialize(int index, OutputStream stream) throws IOException {
+        if(isBlock(index)) {
+            SaveHelper.writeByte((byte) 0, stream);
+        } else {
+            SaveHelper.writeByte((byte) 1, stream);
+            SaveHelper.writeDouble(maxFood[index], stream);
+            SaveHelper.writeDouble(food[index], stream);
+            ICell cell = cell(index);
+            if(cell != null) {
+                SaveHelper.writeByte((byte) 1, stream);
+                cell.serialize(stream);
+            } else {
+                SaveHelper.writeByte((byte) 0, stream);
+            }
+        }
+    }
+
+    /**
+     * Reads a tile written by {@link #serialize(int, OutputStream)} or by
+     * {@link Tile#serialize(OutputStream)} into the given index.
+     */
+    public void deserialize(int index, InputStream stream) throws IOException {
+        Cell.Loader cells = new Cell.Loader(Cell.RiboImpl.DnaBuilder.TRAIT_COUNT);
+        deserialize(index, stream, cells);
+        cells.finish();
+    }
+
+    /**
+     * Reads a tile, leaving its cell, if any, to the loader; the cell is on
+     * the tile once {@link Cell.Loader#finish()} was called.
+     */
+    public void deserialize(int index, InputStream stream, Cell.Loader cells) throws IOException {
+        int block = stream.read();
+        if(block == 0) {
+            setBlock(index);
+        } else if(block == 1) {
+            //The grid may have been made with a different layout.
+            if(isBlock(index)) {
+                blocks[index >>> 6] &= ~(1L << index);
+                blockEpoch++;
+            }
+            maxFood[index] = SaveHelper.readDouble(stream);
+            food[index] = SaveHelper.readDouble(stream);
+            updateFoodBit(index);
+            markDirty(index);
+            int hasCell = stream.read();
+            if(hasCell == 1) {
+                cells.read(tile(index), stream);
+            } else if(hasCell == -1) {
+                throw new EOFException(String.format("Cannot read cell. (Position: %d, %d)", xOf(index), yOf(index)));
+            }
+        } else {
+            throw new IOException(String.format("Cannot read cell. (Position: %d, %d)", xOf(index), yOf(index)));
+        }
+    }
+
+    /**
+     * Flyweight tile. Holds nothing but the index of the tile.
+     */
+    private class TileView implements ITile {
+
+        private final int index;
+        //Made on first use; cells keep their tile view and ask every cycle.
+        private FoodView foodView;
+
+        private TileView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int onCycleUpdate(int globalTime) {
+            return 0;
+        }
+
+        @Override
+        public DoubleBoundedBuffer food() {
+            if(GridStore.this.isBlock(index)) {
+                return DoubleBoundedBuffer.ZERO;
+            }
+            if(foodView == null) {
+                foodView = new FoodView(index);
+            }
+            return foodView;
+        }
+
+        @Override
+        public ICell getCell() {
+            return cell(index);
+        }
+
+        @Override
+        public ICell putCell(ICell cell) {
+            return GridStore.this.putCell(index, cell);
+        }
+
+        @Override
+        public boolean isBlock() {
+            return GridStore.this.isBlock(index);
+        }
+
+        @Override
+        public int getX() {
+            return xOf(index);
+        }
+
+        @Override
+        public int getY() {
+            return yOf(index);
+        }
+
+        @Override
+        public void serialize(OutputStream stream) throws IOException {
+            GridStore.this.serialize(index, stream);
+        }
+
+        private GridStore store() {
+            return GridStore.this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof TileView)) {
+                return false;
+            }
+            TileView other = (TileView) o;
+            return other.index == index && other.store() == GridStore.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(glyph(index));
+        }
+    }
+
+    /**
+     * The food buffer of a tile, backed by the food array. Transfers go
+     * through {@link GridStore#setFood(int, double)}, so they are clamped to
+     * the capacity of the tile like any other write.
+     */
+    private class FoodView implements DoubleBoundedBuffer {
+
+        private final int index;
+
+        private FoodView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public double doubleValue() {
+            return food[index];
+        }
+
+        @Override
+        public void setDouble(double value) {
+            setFood(index, value);
+        }
+
+        @Override
+        public double maxDouble() {
+            return maxFood[index];
+        }
+
+        @Override
+        public double minDouble() {
+            return 0;
+        }
+    }
+}
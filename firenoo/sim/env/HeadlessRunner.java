@@ -0,0 +1,113 @@
+package firenoo.sim.env;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs an environment for a number of ticks on the calling thread, as fast as
+ * possible and without any console output. Samples are handed to the
+ * registered listeners every {@code interval} ticks, so batch runs only pay
+ * for the snapshots or metrics they actually ask for.
+ * <pre>
+ *     new HeadlessRunner(env)
+ *         .every(100, sample -> log.println(sample))
+ *         .every(10000, sample -> env.serialize("run-" + sample.globalTime + ".dat"))
+ *         .run(100000);
+ * </pre>
+ */
+public class HeadlessRunner {
+
+    private final Environment env;
+    private final List<Sampler> samplers = new ArrayList<>();
+
+    public HeadlessRunner(Environment env) {
+        this.env = env;
+    }
+
+    /**
+     * Registers a listener that gets a sample after every interval ticks of
+     * a run, counted from the start of the run.
+     * @return this runner
+     */
+    public HeadlessRunner every(int interval, SampleListener listener) {
+        if(interval < 1) {
+            throw new IllegalArgumentException("Sample interval must be at least 1!");
+        }
+        samplers.add(new Sampler(interval, listener));
+        return this;
+    }
+
+    /**
+     * Runs the given number of ticks. Must not be called while the game loop
+     * of the environment is running.
+     */
+    public void run(int ticks) {
+        long start = System.nanoTime();
+        for(Sampler sampler : samplers) {
+            sampler.last = start;
+        }
+        for(int i = 1; i <= ticks; i++) {
+            env.tick();
+            for(Sampler sampler : samplers) {
+                if(i % sampler.interval == 0) {
+                    long now = System.nanoTime();
+                    sampler.listener.onSample(new Sample(env, i, now - sampler.last));
+                    sampler.last = now;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface SampleListener {
+
+        void onSample(Sample sample);
+    }
+
+    /**
+     * Metrics of the environment after a tick. The environment itself is
+     * passed along for snapshots; it must only be used during the callback.
+     */
+    public static class Sample {
+
+        public final Environment env;
+        //Ticks run so far in this run.
+        public final int tick;
+        public final int globalTime;
+        //Time spent since the previous sample of the same listener.
+        public final long elapsedNanos;
+        public final int cellCt;
+        public final double totalFood;
+
+        private Sample(Environment env, int tick, long elapsedNanos) {
+            this.env = env;
+            this.tick = tick;
+            this.globalTime = env.getGlobalTime();
+            this.elapsedNanos = elapsedNanos;
+            GridStore grid = env.getGrid();
+            double totalFood = 0;
+            for(int i = 0; i < grid.size(); i++) {
+                totalFood += grid.food(i);
+            }
+            this.cellCt = grid.cellCount();
+            this.totalFood = totalFood;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("t=%d cells=%d food=%.3f %.3fms", globalTime, cellCt, totalFood, elapsedNanos / 1e6);
+        }
+    }
+
+    private static class Sampler {
+
+        private final int interval;
+        private final SampleListener listener;
+        private long last;
+
+        private Sampler(int interval, SampleListener listener) {
+            this.interval = interval;
+            this.listener = listener;
+        }
+    }
+}
@@ -4,7 +4,7 @@ import java.io.OutputStream;
 import java.io.IOException;
 
 import firenoo.sim.cell.ICell;
-import firenoo.lib.buffer.IBoundedBuffer;
+import firenoo.sim.buffer.DoubleBoundedBuffer;
 
 
 /**
@@ -24,7 +24,7 @@ public interface ITile {
      * Get the food on the tile. Always 0 or greater. Food values on block
      * tiles are always treated as 0.
      */
-    IBoundedBuffer<Double> food();
+    DoubleBoundedBuffer food();
 
     /**
      * Gets the cell on this tile.
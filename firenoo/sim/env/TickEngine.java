@@ -0,0 +1,93 @@
+package firenoo.sim.env;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the per-cycle phases over the rows of the grid on a fork-join pool.
+ * The rows are cut into a fixed number of horizontal stripes. Every call to
+ * {@link #forEachStripe(StripeAction)} returns only after all stripes are done,
+ * which is the barrier between two phases.
+ * Stripe boundaries only depend on the grid height and the stripe count, so
+ * per-stripe results merged back in stripe order come out in row-major order.
+ */
+public class TickEngine {
+
+    //Stripes per worker. A few extra stripes even out rows with more cells.
+    private static final int STRIPES_PER_WORKER = 4;
+
+    private final ForkJoinPool pool;
+    private final int height;
+    private final int stripes;
+
+    public TickEngine(int height) {
+        this(height, ForkJoinPool.commonPool());
+    }
+
+    public TickEngine(int height, ForkJoinPool pool) {
+        this.pool = pool;
+        this.height = height;
+        this.stripes = Math.max(1, Math.min(height, pool.getParallelism() * STRIPES_PER_WORKER));
+    }
+
+    /**
+     * The number of stripes the rows are cut into. Never changes.
+     */
+    public int stripeCount() {
+        return stripes;
+    }
+
+    /**
+     * @return the first row of the stripe. stripeStart(stripeCount()) is the
+     *         height of the grid.
+     */
+    public int stripeStart(int stripe) {
+        return (int) ((long) height * stripe / stripes);
+    }
+
+    /**
+     * Runs the action once for every stripe, in parallel, and waits for all of
+     * them to finish. Exceptions thrown by the action are rethrown here.
+     */
+    public void forEachStripe(StripeAction action) {
+        pool.invoke(new StripeTask(action, 0, stripes));
+    }
+
+    /**
+     * Work for a range of rows.
+     */
+    @FunctionalInterface
+    public interface StripeAction {
+
+        /**
+         * @param stripe  index of the stripe, in [0, stripeCount())
+         * @param fromRow first row of the stripe (inclusive)
+         * @param toRow   last row of the stripe (exclusive)
+         */
+        void run(int stripe, int fromRow, int toRow);
+    }
+
+    private class StripeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final StripeAction action;
+        private final int lo, hi;
+
+        private StripeTask(StripeAction action, int lo, int hi) {
+            this.action = action;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if(hi - lo == 1) {
+                action.run(lo, stripeStart(lo), stripeStart(hi));
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new StripeTask(action, lo, mid), new StripeTask(action, mid, hi));
+            }
+        }
+    }
+}
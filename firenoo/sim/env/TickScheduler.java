@@ -0,0 +1,344 @@
+package firenoo.sim.env;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a tick on its own thread, either at a fixed rate or as fast as possible.
+ * <p>
+ * At a fixed rate, tick n is due at start + n * period, no matter how long the
+ * ticks themselves take. When ticks overrun, the scheduler runs the late ticks
+ * back to back to catch up, but never more than {@code maxCatchUp} in a row.
+ * Once it is further behind than that, the missed ticks are dropped and the
+ * schedule restarts from the current time.
+ * <p>
+ * After every tick the listeners get the time the tick took and how late it
+ * started, so callers can see when the simulation falls behind.
+ */
+public class TickScheduler {
+
+    /**
+     * Rate value for running ticks back to back without waiting.
+     */
+    public static final int UNTHROTTLED = 0;
+
+    public static final int DEFAULT_MAX_CATCH_UP = 5;
+
+    private final Runnable tick;
+    private final String threadName;
+    private final CopyOnWriteArrayList<TickListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile int ups;
+    private volatile int maxCatchUp = DEFAULT_MAX_CATCH_UP;
+
+    private final Object lock = new Object();
+    private volatile Thread thread;
+    //Counts the threads started. A loop only runs while its own generation
+    //is the current one.
+    private int generation;
+    private boolean running;
+    private boolean paused;
+    private int pendingSteps;
+    //Set whenever the rate changes or the scheduler resumes, so the next tick
+    //starts a fresh schedule.
+    private boolean rescheduled;
+
+    private volatile long tickCt;
+    private volatile long lastTickNanos;
+    private volatile long lagNanos;
+    private volatile long droppedTicks;
+
+    /**
+     * @param tick       the work of one tick
+     * @param ups        ticks per second, or UNTHROTTLED
+     * @param threadName name of the thread that runs the ticks
+     */
+    public TickScheduler(Runnable tick, int ups, String threadName) {
+        this.tick = tick;
+        this.threadName = threadName;
+        setUps(ups);
+    }
+
+    /**
+     * Sets the tick rate. Takes effect from the next tick.
+     * @param ups ticks per second, or UNTHROTTLED to run ticks back to back
+     */
+    public void setUps(int ups) {
+        if(ups < 0) {
+            throw new IllegalArgumentException("Tick rate cannot be negative!");
+        }
+        synchronized(lock) {
+            this.ups = ups;
+            this.rescheduled = true;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    public int getUps() {
+        return ups;
+    }
+
+    /**
+     * Sets the number of late ticks that may run back to back before the
+     * backlog is dropped. 0 drops every late tick.
+     */
+    public void setMaxCatchUp(int maxCatchUp) {
+        this.maxCatchUp = Math.max(0, maxCatchUp);
+    }
+
+    public void addListener(TickListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(TickListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts the tick thread. Does nothing if it is already running. If a
+     * stopped thread is still finishing its last tick, waits for it first, so
+     * two ticks never run at once.
+     */
+    public void start() {
+        Thread old;
+        synchronized(lock) {
+            if(running) {
+                return;
+            }
+            old = thread;
+        }
+        if(old != null && old != Thread.currentThread()) {
+            try {
+                old.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized(lock) {
+            if(running) {
+                return;
+            }
+            running = true;
+            rescheduled = true;
+            int gen = ++generation;
+            thread = new Thread(() -> loop(gen), threadName);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops ticking after the current tick. Does not wait for the thread; a
+     * later {@link #start()} does.
+     */
+    public void stop() {
+        synchronized(lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops ticking after the current tick. A paused scheduler still runs
+     * ticks requested with {@link #step()}.
+     */
+    public void pause() {
+        synchronized(lock) {
+            paused = true;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    public void resume() {
+        synchronized(lock) {
+            paused = false;
+            rescheduled = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Runs a single tick while paused. Does nothing if not paused.
+     */
+    public void step() {
+        synchronized(lock) {
+            if(paused) {
+                pendingSteps++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return True iff started and not stopped. Turns false if a tick throws.
+     */
+    public boolean isRunning() {
+        synchronized(lock) {
+            return running;
+        }
+    }
+
+    public boolean isPaused() {
+        synchronized(lock) {
+            return paused;
+        }
+    }
+
+    /**
+     * The number of ticks run so far.
+     */
+    public long getTickCount() {
+        return tickCt;
+    }
+
+    /**
+     * How long the last tick took, in nanoseconds.
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    /**
+     * How late the last tick started compared to its schedule, in nanoseconds.
+     * Always 0 when unthrottled or stepping.
+     */
+    public long getLagNanos() {
+        return lagNanos;
+    }
+
+    /**
+     * The number of ticks dropped because the scheduler fell too far behind.
+     */
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    private void loop(int gen) {
+        long next = 0;
+        int caughtUp = 0;
+        while(true) {
+            long lag = 0;
+            boolean step = false;
+            synchronized(lock) {
+                while(isCurrent(gen) && paused && pendingSteps == 0) {
+                    try {
+                        lock.wait();
+                    } catch(InterruptedException e) {
+                        stopGeneration(gen);
+                    }
+                }
+                if(!isCurrent(gen)) {
+                    return;
+                }
+                if(paused) {
+                    pendingSteps--;
+                    rescheduled = true;
+                    step = true;
+                } else if(rescheduled) {
+                    rescheduled = false;
+                    next = System.nanoTime();
+                    caughtUp = 0;
+                }
+            }
+            int rate = ups;
+            if(!step && rate != UNTHROTTLED) {
+                long period = TimeUnit.SECONDS.toNanos(1) / rate;
+                if(!waitUntil(gen, next)) {
+                    //Stopped, paused or rescheduled while waiting.
+                    continue;
+                }
+                lag = System.nanoTime() - next;
+                if(lag >= period) {
+                    //Late by at least a whole tick.
+                    if(++caughtUp > maxCatchUp) {
+                        long missed = lag / period;
+                        droppedTicks += missed;
+                        next += missed * period;
+                        lag -= missed * period;
+                        caughtUp = 0;
+                    }
+                } else {
+                    caughtUp = 0;
+                }
+                next += period;
+            }
+            boolean done = false;
+            try {
+                runTick(lag);
+                done = true;
+            } finally {
+                if(!done) {
+                    //The tick threw; the thread dies with the exception.
+                    synchronized(lock) {
+                        stopGeneration(gen);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True iff the loop of the generation should keep running. Call
+     *         with the lock held.
+     */
+    private boolean isCurrent(int gen) {
+        return running && generation == gen;
+    }
+
+    /**
+     * Stops the scheduler if the generation is still the current one. Call
+     * with the lock held.
+     */
+    private void stopGeneration(int gen) {
+        if(generation == gen) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Parks until the deadline, or until stopped, paused or rescheduled.
+     * @return False iff the wait was cut short
+     */
+    private boolean waitUntil(int gen, long deadline) {
+        long now = System.nanoTime();
+        while(now - deadline < 0) {
+            LockSupport.parkNanos(this, deadline - now);
+            synchronized(lock) {
+                if(!isCurrent(gen) || paused || rescheduled) {
+                    return false;
+                }
+            }
+            now = System.nanoTime();
+        }
+        return true;
+    }
+
+    private void runTick(long lag) {
+        long start = System.nanoTime();
+        tick.run();
+        long took = System.nanoTime() - start;
+        long n = ++tickCt;
+        lastTickNanos = took;
+        lagNanos = lag;
+        for(TickListener listener : listeners) {
+            listener.onTick(n, took, lag);
+        }
+    }
+
+    /**
+     * Receives the timing of every tick. Called on the tick thread.
+     */
+    @FunctionalInterface
+    public interface TickListener {
+
+        /**
+         * @param tick      the number of ticks run so far, including this one
+         * @param tickNanos how long the tick took
+         * @param lagNanos  how late the tick started compared to its schedule
+         */
+        void onTick(long tick, long tickNanos, long lagNanos);
+    }
+}
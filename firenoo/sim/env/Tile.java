@@ -3,9 +3,8 @@ package firenoo.sim.env;
 import firenoo.sim.cell.ICell;
 import firenoo.sim.cell.Cell;
 
-import firenoo.lib.buffer.DoubleBoundBuffer;
-import firenoo.lib.buffer.IBoundedBuffer;
-import firenoo.lib.buffer.ImmutableDoubleBuffer;
+import firenoo.sim.buffer.BoundedDouble;
+import firenoo.sim.buffer.DoubleBoundedBuffer;
 import firenoo.lib.data.SaveHelper;
 
 import java.io.OutputStream;
@@ -22,7 +21,7 @@ public class Tile implements ITile {
 
     private int x, y;
         
-    IBoundedBuffer<Double> food;
+    DoubleBoundedBuffer food;
 
     private ICell cell;
 
@@ -44,8 +43,8 @@ public class Tile implements ITile {
 
     private Tile(int x, int y, double maxFood, double food) {
         this.MAX_FOOD_ON_TILE = maxFood;
-        this.food = new DoubleBoundBuffer(0, MAX_FOOD_ON_TILE);
-        this.food.set(food);        
+        this.food = new BoundedDouble(0, MAX_FOOD_ON_TILE);
+        this.food.setDouble(food);        
         this.isBlock = false;
         this.x = x;
         this.y = y;
@@ -58,7 +57,7 @@ public class Tile implements ITile {
     }
 
     @Override
-    public IBoundedBuffer<Double> food() {
+    public DoubleBoundedBuffer food() {
         return food;
     }
 
@@ -107,7 +106,7 @@ public class Tile implements ITile {
         } else {
             SaveHelper.writeByte((byte) 1, stream);
             SaveHelper.writeDouble(MAX_FOOD_ON_TILE, stream);
-            SaveHelper.writeDouble(food.value(), stream);
+            SaveHelper.writeDouble(food.doubleValue(), stream);
             if(cell != null) {
                 SaveHelper.writeByte((byte) 1, stream);
                 cell.serialize(stream);
@@ -140,16 +139,16 @@ public class Tile implements ITile {
 
     public static class BlockTile extends Tile {
 
-        private IBoundedBuffer<Double> food;
+        private DoubleBoundedBuffer food;
 
         private BlockTile(int x, int y) {
             super(x, y);
             this.isBlock = true;
-            this.food = new ImmutableDoubleBuffer();
+            this.food = DoubleBoundedBuffer.ZERO;
         }
 
         @Override
-        public IBoundedBuffer<Double> food() {
+        public DoubleBoundedBuffer food() {
             return this.food;
         }
 
@@ -0,0 +1,197 @@
+package firenoo.sim.env;
+
+import firenoo.sim.cell.ICell;
+
+/**
+ * A reusable window into the grid around a position. Nothing is copied; every
+ * query reads the {@link GridStore} directly, so a view can be pointed at the
+ * next cell with {@link #reset(int, int, int)} without allocating.
+ * Window coordinates follow {@link IEnvironment#getTilesInRange(int, int, int)}:
+ * (i, j) is (row, column) and the center is at (range, range). A slot is part
+ * of the window iff it is inside the grid and its taxicab distance to the
+ * center is at most the range.
+ * Views are owned by the environment and reused for the next cell, so
+ * behaviors must not keep a reference after the event returns.
+ */
+public class VisionView {
+
+    private final GridStore grid;
+    private final FoodField foodField;
+    private final FlowField flowField;
+    private final ClusterGraph clusterGraph;
+
+    private int x, y;
+    private int range;
+
+    public VisionView(GridStore grid) {
+        this(grid, null, null, null);
+    }
+
+    public VisionView(GridStore grid, FoodField foodField, FlowField flowField, ClusterGraph clusterGraph) {
+        this.grid = grid;
+        this.foodField = foodField;
+        this.flowField = flowField;
+        this.clusterGraph = clusterGraph;
+    }
+
+    /**
+     * Points the window at a new position. The range is clamped the same way as
+     * in getTilesInRange.
+     * @return this view
+     */
+    public VisionView reset(int x, int y, int range) {
+        if(range > grid.width()) range = grid.width();
+        if(range > grid.height()) range = grid.height();
+        this.x = x;
+        this.y = y;
+        this.range = range;
+        return this;
+    }
+
+    public GridStore grid() {
+        return grid;
+    }
+
+    /**
+     * @return the food field of the environment, or null if the view was
+     *         made without one.
+     */
+    public FoodField foodField() {
+        return foodField;
+    }
+
+    /**
+     * @return the flow field of the environment, or null if the view was
+     *         made without one.
+     */
+    public FlowField flowField() {
+        return flowField;
+    }
+
+    /**
+     * @return the cluster graph of the environment, or null if the view was
+     *         made without one.
+     */
+    public ClusterGraph clusterGraph() {
+        return clusterGraph;
+    }
+
+    /**
+     * @return the index of the nearest food source inside the window, or -1
+     *         if there is none or the view has no food field.
+     */
+    public int nearestFood() {
+        if(foodField == null) {
+            return -1;
+        }
+        int center = centerIndex();
+        //The field measures taxicab distance, the same as the window shape.
+        return foodField.dist(center) <= range ? foodField.nearest(center) : -1;
+    }
+
+    /**
+     * @return the mask of the open neighbours of the center tile: inside the
+     *         window and not blocks. Bit GridStore.NORTH is the tile above,
+     *         and so on.
+     */
+    public int openNeighbors() {
+        return range < 1 ? 0 : grid.openNeighbors(centerIndex());
+    }
+
+    /**
+     * @return the number of tiles in the window with food and no cell.
+     */
+    public int countFreeFood() {
+        return grid.countInRange(GridStore.FOOD, GridStore.CELLS, x, y, range);
+    }
+
+    /**
+     * The (clamped) vision range. The center of the window is at (range, range).
+     */
+    public int range() {
+        return range;
+    }
+
+    /**
+     * The side length of the window, range * 2 + 1.
+     */
+    public int diameter() {
+        return range * 2 + 1;
+    }
+
+    /**
+     * @return the world x coordinate of window column j.
+     */
+    public int worldX(int j) {
+        return x - range + j;
+    }
+
+    /**
+     * @return the world y coordinate of window row i.
+     */
+    public int worldY(int i) {
+        return y - range + i;
+    }
+
+    /**
+     * @return True iff the slot is part of the window.
+     */
+    public boolean contains(int i, int j) {
+        return Math.abs(i - range) + Math.abs(j - range) <= range
+            && grid.inBounds(x - range + j, y - range + i);
+    }
+
+    /**
+     * @return the grid index of the slot, or -1 if the slot is not part of the
+     *         window.
+     */
+    public int index(int i, int j) {
+        return contains(i, j) ? grid.index(x - range + j, y - range + i) : -1;
+    }
+
+    /**
+     * @return the grid index of the center tile.
+     */
+    public int centerIndex() {
+        return grid.index(x, y);
+    }
+
+    /**
+     * The slot must be part of the window.
+     */
+    public double food(int i, int j) {
+        return grid.food(grid.index(x - range + j, y - range + i));
+    }
+
+    /**
+     * The slot must be part of the window.
+     */
+    public boolean hasCell(int i, int j) {
+        return grid.hasCell(grid.index(x - range + j, y - range + i));
+    }
+
+    /**
+     * The slot must be part of the window.
+     */
+    public boolean isBlock(int i, int j) {
+        return grid.isBlock(grid.index(x - range + j, y - range + i));
+    }
+
+    /**
+     * @return the cell on the slot, or null if there is none or the slot is not
+     *         part of the window.
+     */
+    public ICell cell(int i, int j) {
+        int index = index(i, j);
+        return index < 0 ? null : grid.cell(index);
+    }
+
+    /**
+     * @return a tile view of the slot, or null if the slot is not part of the
+     *         window. Allocates; prefer the primitive queries.
+     */
+    public ITile tile(int i, int j) {
+        int index = index(i, j);
+        return index < 0 ? null : grid.tile(index);
+    }
+}